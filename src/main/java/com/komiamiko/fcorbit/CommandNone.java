@@ -7,6 +7,7 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 
 import com.komiamiko.fcorbit.document.FCObj;
@@ -62,14 +63,13 @@ public class CommandNone implements ActiveCommand{
 				ArrayList<FCObj> candidates = view.getSelectionArea(mx,my);
 				if(candidates.size()>0){// Something will be selected
 					for(FCObj obj:candidates){
-						int line = obj.getLineNumber();
 						// No shift -> select all
 						// Shift -> deselect all
-						boolean oc = view.objSel.get(line);
+						boolean oc = view.objSel.contains(obj);
 						if(!oc&&!shift){
-							view.objSel.set(line);
+							view.objSel.add(obj);
 						}else if(oc&&shift){
-							view.objSel.clear(line);
+							view.objSel.remove(obj);
 						}
 					}
 					Main.updateTextSelectionFromObj();
@@ -79,14 +79,13 @@ public class CommandNone implements ActiveCommand{
 				int mx = view.originMousex, my = view.originMousey;
 				FCObj sel = view.getSelectionPoint(mx,my);
 				if(sel!=null){// Something will be selected
-					int line = sel.getLineNumber();
 					if(shift){
 						// Try to remove it, and if it wasn't removed, add it
-						view.objSel.flip(line);
+						view.objSel.flip(sel);
 					}else{
 						// Replace the current selection with the new one
 						view.objSel.clear();
-						view.objSel.set(line);
+						view.objSel.add(sel);
 					}
 					Main.updateTextSelectionFromObj();
 					view.repaint();
@@ -127,14 +126,13 @@ public class CommandNone implements ActiveCommand{
 			ArrayList<FCObj> candidates = view.getSelectionArea(mx,my);
 			if(candidates.size()>0){// Something will be selected
 				for(FCObj obj:candidates){
-					int line = obj.getLineNumber();
 					// No shift -> select all
 					// Shift -> deselect all
-					boolean oc = view.objSel.get(line);
+					boolean oc = view.objSel.contains(obj);
 					if(!oc&&!shift){
-						view.objSel.set(line);
+						view.objSel.add(obj);
 					}else if(oc&&shift){
-						view.objSel.clear(line);
+						view.objSel.remove(obj);
 					}
 				}
 			}
@@ -152,14 +150,13 @@ public class CommandNone implements ActiveCommand{
 		int mx = e.getX(), my = e.getY();
 		FCObj sel = view.getSelectionPoint(mx,my);
 		if(sel!=null){// Something will be selected
-			int line = sel.getLineNumber();
 			if(shift){
 				// Try to remove it, and if it wasn't removed, add it
-				view.objSel.flip(line);
+				view.objSel.flip(sel);
 			}else{
 				// Replace the current selection with the new one
 				view.objSel.clear();
-				view.objSel.set(line);
+				view.objSel.add(sel);
 			}
 		}
 		view.repaint();
@@ -247,26 +244,35 @@ public class CommandNone implements ActiveCommand{
 		case KeyEvent.VK_X:{
 			// Delete selection
 			view.restoreBackupSel();
-			if(view.objSel.cardinality()>0){
-				for(int i = view.objSel.length(); (i = view.objSel.previousSetBit(i-1)) >= 0;) {
-					view.objDoc.remove(i);
-				}
+			BitSet lines = view.getSelectedLines();
+			if(!lines.isEmpty()){
 				view.objSel.clear();
-				Main.updateTextFromObj();
+				Main.removeObjLines(lines);
+				Main.updateTextSelectionFromObj();
+				view.repaint();
+			}
+			break;
+		}
+		case KeyEvent.VK_L:{
+			// Select linked, everything jointed to the selection
+			view.restoreBackupSel();
+			if(!ctrl&&!alt&&!view.objSel.isEmpty()){
+				view.selectLinked();
+				Main.updateTextSelectionFromObj();
 				view.repaint();
 			}
 			break;
 		}
 		case KeyEvent.VK_G:{
 			// Translate selection
-			if(view.objSel.cardinality()>0){
+			if(!view.getSelectedLines().isEmpty()){
 				view.setCommand(new CommandTranslate(view));
 			}
 			break;
 		}
 			case KeyEvent.VK_R:{
 				// Rotate selection
-				if(view.objSel.cardinality()>0){
+				if(!view.getSelectedLines().isEmpty()){
 					view.setCommand(new CommandRotate(view));
 				}
 				break;
@@ -1,5 +1,6 @@
 package com.komiamiko.fcorbit;
 
+import com.komiamiko.fcorbit.document.FCDocument;
 import com.komiamiko.fcorbit.document.FCObj;
 
 import java.awt.*;
@@ -8,6 +9,7 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
+import java.util.BitSet;
 
 public class CommandRotate implements ActiveCommand {
 
@@ -19,7 +21,27 @@ public class CommandRotate implements ActiveCommand {
     public final GraphicEditorPane view;
 
     public boolean done = false;
-    public FCObj[] backupDoc;
+    public FCDocument backupDoc;
+    /**
+     * Lines of the selected objects, which do not move during the command
+     */
+    public BitSet selLines;
+    /**
+     * Selected lines which were not dirty when the command started
+     */
+    public BitSet cleanLines;
+    /**
+     * Selected objects as they were before the command, in line order
+     */
+    private FCObj[] original;
+    /**
+     * Copies of the selected objects, made once and moved on every update
+     */
+    private FCObj[] moved;
+    /**
+     * Document holding {@link #moved}, made on the first update
+     */
+    private FCDocument movedDoc;
     public int initialx;
     public int initialy;
 
@@ -36,10 +58,12 @@ public class CommandRotate implements ActiveCommand {
         this.view = view;
         initialx = view.lastMousex;
         initialy = view.lastMousey;
-        backupDoc = new FCObj[view.objSel.cardinality()];
-        for(int i = view.objSel.nextSetBit(0), j = 0; i >= 0; i = view.objSel.nextSetBit(i+1), ++j) {
-            FCObj obj = (FCObj)view.objDoc.get(i);
-            backupDoc[j] = new FCObj(obj);
+        backupDoc = view.objDoc;
+        selLines = view.getSelectedLines();
+        cleanLines = Main.cleanObjLines(selLines);
+        original = new FCObj[selLines.cardinality()];
+        for(int i = selLines.nextSetBit(0), j = 0; i >= 0; i = selLines.nextSetBit(i+1), j++) {
+            original[j] = (FCObj)backupDoc.get(i);
         }
     }
 
@@ -50,11 +74,7 @@ public class CommandRotate implements ActiveCommand {
     }
 
     private void restoreBackupDoc() {
-        for(int i = view.objSel.nextSetBit(0), j = 0; i >= 0; i = view.objSel.nextSetBit(i+1), ++j) {
-            FCObj copy = backupDoc[j];
-            FCObj obj = (FCObj)view.objDoc.get(i);
-            obj.copyFrom(copy);
-        }
+        view.restoreObjDocMoved(backupDoc, selLines, cleanLines);
     }
 
     @Override
@@ -164,7 +184,13 @@ public class CommandRotate implements ActiveCommand {
     }
 
     private void updateMove() {
-        restoreBackupDoc();
+        if(movedDoc == null) {
+            moved = new FCObj[original.length];
+            for(int j = 0; j < original.length; j++) {
+                moved[j] = new FCObj(original[j]);
+            }
+            movedDoc = backupDoc.withAll(selLines, moved);
+        }
         double[] stats = getRotationStatistics();
         final double allpivotx = stats[0];
         final double allpivoty = stats[1];
@@ -172,16 +198,18 @@ public class CommandRotate implements ActiveCommand {
         final double angleDiffDegrees = stats[7];
         double c = Math.cos(angleDiffRadians);
         double s = Math.sin(angleDiffRadians);
-        for(int i = view.objSel.nextSetBit(0), j = 0; i >= 0; i = view.objSel.nextSetBit(i+1), ++j) {
-            FCObj obj = (FCObj)view.objDoc.get(i);
-            obj.r += angleDiffDegrees;
+        for(int j = 0; j < moved.length; j++) {
+            FCObj from = original[j];
+            FCObj obj = moved[j];
+            obj.r = from.r + angleDiffDegrees;
             if(pivotMode != PIVOT_INDIVIDUAL) {
-                double dx = obj.x - allpivotx;
-                double dy = obj.y - allpivoty;
+                double dx = from.x - allpivotx;
+                double dy = from.y - allpivoty;
                 obj.x = allpivotx + dx * c - dy * s;
                 obj.y = allpivoty + dx * s + dy * c;
             }
         }
+        view.setObjDocMoved(movedDoc, selLines);
     }
 
     /*
@@ -192,11 +220,11 @@ public class CommandRotate implements ActiveCommand {
         int objcount = 0;
         double allpivotx = 0;
         double allpivoty = 0;
-        for(int i = view.objSel.nextSetBit(0), j = 0; i >= 0; i = view.objSel.nextSetBit(i+1), ++j) {
+        // from the objects before rotating, since the store holds the rotated ones
+        for(FCObj obj : original) {
             if(pivotMode == PIVOT_WORLD_ORIGIN) {
                 break;
             }
-            FCObj obj = (FCObj)view.objDoc.get(i);
             objcount++;
             allpivotx += obj.x;
             allpivoty += obj.y;
@@ -5,10 +5,12 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.AffineTransform;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 
+import com.komiamiko.fcorbit.document.FCDocument;
 import com.komiamiko.fcorbit.document.FCObj;
 
 /**
@@ -22,7 +24,27 @@ public class CommandTranslate implements ActiveCommand{
 	public final GraphicEditorPane view;
 	
 	public boolean done = false;
-	public FCObj[] backupDoc;
+	public FCDocument backupDoc;
+	/**
+	 * Lines of the selected objects, which do not move during the command
+	 */
+	public BitSet selLines;
+	/**
+	 * Selected lines which were not dirty when the command started
+	 */
+	public BitSet cleanLines;
+	/**
+	 * Selected objects as they were before the command, in line order
+	 */
+	private FCObj[] original;
+	/**
+	 * Copies of the selected objects, made once and moved on every update
+	 */
+	private FCObj[] moved;
+	/**
+	 * Document holding {@link #moved}, made on the first update
+	 */
+	private FCDocument movedDoc;
 	public int initialx;
 	public int initialy;
 	
@@ -38,19 +60,13 @@ public class CommandTranslate implements ActiveCommand{
 		this.view = view;
 		initialx = view.lastMousex;
 		initialy = view.lastMousey;
-		backupDoc = new FCObj[view.objSel.cardinality()];
-		for(int i = view.objSel.nextSetBit(0), j = 0; i >= 0; i = view.objSel.nextSetBit(i+1), ++j) {
-			FCObj obj = (FCObj)view.objDoc.get(i);
-			backupDoc[j] = new FCObj(obj);
-		}
+		backupDoc = view.objDoc;
+		selLines = view.getSelectedLines();
+		cleanLines = Main.cleanObjLines(selLines);
 	}
 	
 	public void restoreBackupDoc(){
-		for(int i = view.objSel.nextSetBit(0), j = 0; i >= 0; i = view.objSel.nextSetBit(i+1), ++j) {
-			FCObj copy = backupDoc[j];
-			FCObj obj = (FCObj)view.objDoc.get(i);
-			obj.copyFrom(copy);
-		}
+		view.restoreObjDocMoved(backupDoc, selLines, cleanLines);
 	}
 	
 	public double[] getTranslation(int mx,int my){
@@ -92,15 +108,28 @@ public class CommandTranslate implements ActiveCommand{
 	}
 	
 	public void updateMove(int mx,int my){
-		restoreBackupDoc();
+		if(movedDoc==null)makeMovedDoc();
 		double[] wdxy = getTranslation(mx,my);
 		double wdx = wdxy[0];
 		double wdy = wdxy[1];
-		for(int i = view.objSel.nextSetBit(0), j = 0; i >= 0; i = view.objSel.nextSetBit(i+1), ++j) {
-			FCObj obj = (FCObj)view.objDoc.get(i);
-			obj.x += wdx;
-			obj.y += wdy;
+		for(int j=0;j<moved.length;j++){
+			moved[j].x = original[j].x+wdx;
+			moved[j].y = original[j].y+wdy;
+		}
+		view.setObjDocMoved(movedDoc, selLines);
+	}
+	
+	/**
+	 * Copy the selected objects and put the copies in a new document
+	 */
+	private void makeMovedDoc(){
+		original = new FCObj[selLines.cardinality()];
+		moved = new FCObj[original.length];
+		for(int i = selLines.nextSetBit(0), j = 0; i >= 0; i = selLines.nextSetBit(i+1), j++) {
+			original[j] = (FCObj)backupDoc.get(i);
+			moved[j] = new FCObj(original[j]);
 		}
+		movedDoc = backupDoc.withAll(selLines, moved);
 	}
 
 	@Override
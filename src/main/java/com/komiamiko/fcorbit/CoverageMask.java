@@ -0,0 +1,116 @@
+package com.komiamiko.fcorbit;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Collects pieces smaller than a pixel, so they can be drawn
+ * all at once instead of as separate shapes
+ * <br>
+ * Each piece adds its colour to the pixel it is in, weighted by how much
+ * of the pixel it covers, and the pixel gets more opaque as more pieces
+ * land in it. Only the rectangle touched since the last draw is drawn
+ * and cleared. The image is kept between frames, like {@link RenderLayer}.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public class CoverageMask {
+
+	private int width, height;
+	private BufferedImage image;
+	/**
+	 * Premultiplied ARGB pixels of {@link #image}
+	 */
+	private int[] pixels;
+	/**
+	 * Rectangle of touched pixels, inclusive, empty if minx>maxx
+	 */
+	private int minx, miny, maxx = -1, maxy = -1;
+
+	/**
+	 * Get ready to draw a new frame, making the image again if the size changed
+	 *
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 */
+	public void prepare(int width,int height){
+		width = Math.max(width, 1);
+		height = Math.max(height, 1);
+		if(image==null||width!=this.width||height!=this.height){
+			this.width = width;
+			this.height = height;
+			image = new BufferedImage(width,height,BufferedImage.TYPE_INT_ARGB_PRE);
+			pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			maxx = maxy = -1;
+		}else{
+			clear();
+		}
+	}
+
+	/**
+	 * Is nothing waiting to be drawn?
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty(){
+		return minx>maxx;
+	}
+
+	/**
+	 * Add a piece
+	 *
+	 * @param sx screen x of the center
+	 * @param sy screen y of the center
+	 * @param area area on the screen, in pixels
+	 * @param color colour of the piece
+	 */
+	public void add(double sx,double sy,double area,Color color){
+		if(!(sx>=0&&sy>=0&&sx<width&&sy<height))return;
+		int a = (int)(Math.min(area, 1)*255+0.5);
+		if(a==0)return;
+		int px = (int)sx, py = (int)sy;
+		int i = py*width+px;
+		int p = pixels[i];
+		int na = Math.min(255, (p>>>24)+a);
+		int nr = Math.min(na, ((p>>16)&255)+color.getRed()*a/255);
+		int ng = Math.min(na, ((p>>8)&255)+color.getGreen()*a/255);
+		int nb = Math.min(na, (p&255)+color.getBlue()*a/255);
+		pixels[i] = na<<24|nr<<16|ng<<8|nb;
+		if(isEmpty()){
+			minx = maxx = px;
+			miny = maxy = py;
+		}else{
+			minx = Math.min(minx, px);
+			maxx = Math.max(maxx, px);
+			miny = Math.min(miny, py);
+			maxy = Math.max(maxy, py);
+		}
+	}
+
+	/**
+	 * Draw the pieces added so far, then clear them
+	 *
+	 * @param g graphics in screen coordinates
+	 */
+	public void renderTo(Graphics2D g){
+		if(isEmpty())return;
+		g.drawImage(image, minx, miny, maxx+1, maxy+1, minx, miny, maxx+1, maxy+1, null);
+		clear();
+	}
+
+	/**
+	 * Clear the touched rectangle
+	 */
+	private void clear(){
+		for(int y=miny;y<=maxy;y++){
+			Arrays.fill(pixels, y*width+minx, y*width+maxx+1, 0);
+		}
+		minx = miny = 0;
+		maxx = maxy = -1;
+	}
+
+}
@@ -1,5 +1,7 @@
 package com.komiamiko.fcorbit;
 
+import java.io.IOException;
+
 /**
  * Some generic floating point utilities
  * 
@@ -146,6 +148,308 @@ public final class Floats {
 		return Math.max(a, Math.min(c, b));
 	}
 	
+	/**
+	 * Would {@link Double#parseDouble(String)} accept this character range?
+	 * <br>
+	 * Follows the grammar documented in {@link Double#valueOf(String)}
+	 * exactly, so callers can find out if a token is a number without
+	 * paying for a thrown exception
+	 * 
+	 * @param text
+	 * @param start index of the first character
+	 * @param end index after the last character
+	 * @return true if parsing the range would succeed
+	 */
+	public static boolean isParsableDouble(CharSequence text,int start,int end){
+		// same as trim()
+		while(start<end&&text.charAt(start)<=' ')start++;
+		while(start<end&&text.charAt(end-1)<=' ')end--;
+		int i = start;
+		if(i<end&&(text.charAt(i)=='+'||text.charAt(i)=='-'))i++;
+		if(i==end)return false;
+		char c = text.charAt(i);
+		if(c=='N')return matches(text,i,end,"NaN");
+		if(c=='I')return matches(text,i,end,"Infinity");
+		boolean hex = c=='0'&&i+1<end&&(text.charAt(i+1)=='x'||text.charAt(i+1)=='X');
+		if(hex)i+=2;
+		// mantissa, with at most one point and at least one digit
+		int ndigits = 0;
+		boolean point = false;
+		for(;i<end;i++){
+			c = text.charAt(i);
+			if(c=='.'&&!point){
+				point = true;
+			}else if(hex?Character.digit(c, 16)>=0&&c<128:c>='0'&&c<='9'){
+				ndigits++;
+			}else{
+				break;
+			}
+		}
+		if(ndigits==0)return false;
+		// exponent, mandatory for hex
+		if(i<end&&(hex?c=='p'||c=='P':c=='e'||c=='E')){
+			i++;
+			if(i<end&&(text.charAt(i)=='+'||text.charAt(i)=='-'))i++;
+			int expStart = i;
+			while(i<end&&text.charAt(i)>='0'&&text.charAt(i)<='9')i++;
+			if(i==expStart)return false;
+		}else if(hex){
+			return false;
+		}
+		// optional type suffix
+		if(i<end){
+			c = text.charAt(i);
+			if(c=='f'||c=='F'||c=='d'||c=='D')i++;
+		}
+		return i==end;
+	}
+	
+	/**
+	 * Powers of 10 which are exactly representable as doubles
+	 */
+	private static final double[] EXACT_POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+			1e21, 1e22
+	};
+	
+	/**
+	 * Parse a double from a character range, with a result that is
+	 * bit-identical to {@link Double#parseDouble(String)} on that range
+	 * <br>
+	 * Plain decimals like {@code -200.5} or {@code 1e3} whose digits fit in 53 bits
+	 * and whose decimal exponent is small take an exact fast path:
+	 * both the digits and the power of 10 are exact doubles, so the single
+	 * multiply or divide is correctly rounded, same as the standard library
+	 * (Clinger's fast path). Anything else is handed to the standard library.
+	 * 
+	 * @param text
+	 * @param start index of the first character
+	 * @param end index after the last character
+	 * @return the parsed double
+	 * @throws NumberFormatException if it is not a valid double
+	 */
+	public static double parseDouble(CharSequence text,int start,int end){
+		parse:{
+			int i = start;
+			boolean negative = false;
+			if(i<end){
+				char c = text.charAt(i);
+				if(c=='-'){
+					negative = true;
+					i++;
+				}else if(c=='+'){
+					i++;
+				}
+			}
+			// digits, leading zeros are skipped and don't count
+			long mantissa = 0;
+			int ndigits = 0;
+			boolean anyDigits = false;
+			boolean point = false;
+			int exp10 = 0;
+			for(;i<end;i++){
+				char c = text.charAt(i);
+				if(c>='0'&&c<='9'){
+					anyDigits = true;
+					if(mantissa==0&&c=='0'){
+						if(point)exp10--;
+						continue;
+					}
+					// 18 digits can never overflow
+					if(ndigits==18)break parse;
+					mantissa = mantissa*10+(c-'0');
+					ndigits++;
+					if(point)exp10--;
+				}else if(c=='.'&&!point){
+					point = true;
+				}else{
+					break;
+				}
+			}
+			if(!anyDigits)break parse;
+			// exponent
+			if(i<end&&(text.charAt(i)=='e'||text.charAt(i)=='E')){
+				i++;
+				boolean expNegative = false;
+				if(i<end){
+					char c = text.charAt(i);
+					if(c=='-'){
+						expNegative = true;
+						i++;
+					}else if(c=='+'){
+						i++;
+					}
+				}
+				int expStart = i;
+				int exp = 0;
+				for(;i<end;i++){
+					char c = text.charAt(i);
+					if(c<'0'||c>'9')break;
+					// too large to matter, leave it to the standard library
+					if(exp>=10000)break parse;
+					exp = exp*10+(c-'0');
+				}
+				if(i==expStart)break parse;
+				exp10 += expNegative?-exp:exp;
+			}
+			// anything left over, like a type suffix, is unusual
+			if(i!=end)break parse;
+			if(mantissa==0)return negative?-0d:0d;
+			if(mantissa<=(1L<<53)&&exp10>=-22&&exp10<=22){
+				double result = mantissa;
+				result = exp10<0?result/EXACT_POW10[-exp10]:result*EXACT_POW10[exp10];
+				return negative?-result:result;
+			}
+		}
+		return Double.parseDouble(text.subSequence(start, end).toString());
+	}
+	
+	/**
+	 * Powers of 10 as longs, up to the largest below {@code 2^53}
+	 */
+	private static final long[] POW10 = {
+			1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+			100000000L, 1000000000L, 10000000000L, 100000000000L,
+			1000000000000L, 10000000000000L, 100000000000000L,
+			1000000000000000L
+	};
+	
+	/**
+	 * Append a double in decimal, with the fewest digits after the point
+	 * that still parse back to exactly the same double
+	 * <br>
+	 * This is the reverse of the fast path in {@link #parseDouble(CharSequence, int, int)}:
+	 * for each number of decimal places k, the nearest whole numbers m to
+	 * {@code value*10^k} are tried, and since m and {@code 10^k} are both exact
+	 * doubles, {@code m/10^k} is exactly what parsing the decimal gives back.
+	 * The first k that works is the shortest fixed point form.
+	 * Whole numbers keep a trailing {@code .0}, and there is never an exponent,
+	 * so {@code 1e-5} is written as {@code 0.00001} rather than {@code 1.0E-5}.
+	 * <br>
+	 * Values with no such form, such as very large or very small values,
+	 * fall back to {@link Double#toString(double)}, which is also lossless.
+	 * 
+	 * @param out where to append
+	 * @param value the value
+	 * @throws IOException if the appendable does
+	 */
+	public static void appendDouble(Appendable out,double value) throws IOException{
+		char[] buffer = new char[FORMAT_BUFFER];
+		int length = formatDouble(value,buffer);
+		if(length<0){
+			out.append(Double.toString(value));
+		}else{
+			for(int i=0;i<length;i++)out.append(buffer[i]);
+		}
+	}
+	
+	/**
+	 * Append a double in decimal, see {@link #appendDouble(Appendable, double)}
+	 * 
+	 * @param sb where to append
+	 * @param value the value
+	 */
+	public static void appendDouble(StringBuilder sb,double value){
+		char[] buffer = new char[FORMAT_BUFFER];
+		int length = formatDouble(value,buffer);
+		if(length<0){
+			sb.append(value);
+		}else{
+			sb.append(buffer,0,length);
+		}
+	}
+	
+	/**
+	 * Longest output of {@link #formatDouble(double, char[])}:
+	 * sign, "0.", 22 decimal places
+	 */
+	private static final int FORMAT_BUFFER = 25;
+	
+	/**
+	 * Write the shortest fixed point form of a double,
+	 * see {@link #appendDouble(Appendable, double)}
+	 * 
+	 * @param value the value
+	 * @param buffer where to write, at least {@link #FORMAT_BUFFER} long
+	 * @return number of characters written, or -1 if there is no short fixed point form
+	 */
+	private static int formatDouble(double value,char[] buffer){
+		if(value==0){
+			if(Double.doubleToRawLongBits(value)<0){
+				buffer[0] = '-';
+				buffer[1] = '0';
+				buffer[2] = '.';
+				buffer[3] = '0';
+				return 4;
+			}
+			buffer[0] = '0';
+			buffer[1] = '.';
+			buffer[2] = '0';
+			return 3;
+		}
+		double abs = Math.abs(value);
+		if(!(abs<0x1p53&&abs>=1e-7))return -1;
+		if(Math.rint(abs)==abs)return formatFixed((long)abs,0,value<0,buffer);
+		for(int k=1;k<=22;k++){
+			double pow = EXACT_POW10[k];
+			double scaled = abs*pow;
+			if(scaled>=0x1p53)return -1;
+			// the multiply may have rounded, so the nearest whole number
+			// is checked first and then the one on the other side
+			double m = Math.rint(scaled);
+			if(m/pow!=abs){
+				m += scaled<m?-1:1;
+				if(m/pow!=abs)continue;
+			}
+			return formatFixed((long)m,k,value<0,buffer);
+		}
+		return -1;
+	}
+	
+	/**
+	 * Write {@code m/10^k} in fixed point, with at least one digit on each side
+	 */
+	private static int formatFixed(long m,int k,boolean negative,char[] buffer){
+		int ndigits = 1;
+		while(ndigits<POW10.length&&m>=POW10[ndigits])ndigits++;
+		// whole number part is at least one digit, fraction part is at least one digit
+		int wholeDigits = Math.max(1, ndigits-k);
+		int fractionDigits = Math.max(1, k);
+		int length = (negative?1:0)+wholeDigits+1+fractionDigits;
+		// fill from the right
+		int i = length;
+		if(k==0)buffer[--i] = '0';
+		for(int j=0;j<k;j++){
+			buffer[--i] = (char)('0'+m%10);
+			m /= 10;
+		}
+		buffer[--i] = '.';
+		do{
+			buffer[--i] = (char)('0'+m%10);
+			m /= 10;
+		}while(m>0);
+		if(negative)buffer[--i] = '-';
+		return length;
+	}
+	
+	/**
+	 * Does the character range exactly equal the string?
+	 * 
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @param expected
+	 * @return
+	 */
+	private static boolean matches(CharSequence text,int start,int end,String expected){
+		if(end-start!=expected.length())return false;
+		for(int i=0;start<end;start++,i++){
+			if(text.charAt(start)!=expected.charAt(i))return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Main method, used only for testing
 	 * 
@@ -171,5 +475,141 @@ public final class Floats {
 		System.out.println("median(1,2,3)="+median(1f,2f,3f)+","+median(1f,3f,2f)+","+median(2f,1f,3f)+","+median(2f,3f,1f)+","+median(3f,1f,2f)+","+median(3f,2f,1f)+" (expected 2,2,2,2,2,2)");
 		System.out.println("median(-1e38,-1,9)="+median(-1e38f,-1f,9f)+","+median(-1e38f,9f,-1f)+","+median(-1f,-1e38f,9f)+","+median(-1f,9f,-1e38f)+","+median(9f,-1e38f,-1f)+","+median(9f,-1f,-1e38f)+" (expected -1,-1,-1,-1,-1,-1)");
 		System.out.println("median(0,0,1e-37)="+median(0f,0f,1e-37f)+","+median(0f,1e-37f,0f)+","+median(1e-37f,0f,0f)+" (expected 0,0,0)");
+		System.out.println("--- Parsable double ---");
+		String[] parsable = {"0","-200.5","1e3","+7","NaN","-Infinity",".5","1.","0x1p3","0X.8P-1d","1e5f"," 2 ","\u00002\u0001"};
+		String[] unparsable = {"","-","x",".","1e","1e+","0x1","0x1.p","nan","NaNd","1.2.3","1f2","\u0662","0x\u0662p1","--1"};
+		int wrong = 0;
+		for(String v:parsable){
+			boolean jdk;
+			try{Double.parseDouble(v);jdk=true;}catch(NumberFormatException e){jdk=false;}
+			if(!jdk||!isParsableDouble(v,0,v.length()))wrong++;
+		}
+		for(String v:unparsable){
+			boolean jdk;
+			try{Double.parseDouble(v);jdk=true;}catch(NumberFormatException e){jdk=false;}
+			if(jdk||isParsableDouble(v,0,v.length()))wrong++;
+		}
+		java.util.Random random = new java.util.Random();
+		final String alphabet = "0123456789.eE+-xXpPfFdDNaInity \u0000";
+		for(int i=0;i<100000;i++){
+			char[] chars = new char[random.nextInt(9)];
+			for(int j=0;j<chars.length;j++)chars[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+			String v = new String(chars);
+			boolean jdk;
+			try{Double.parseDouble(v);jdk=true;}catch(NumberFormatException e){jdk=false;}
+			if(jdk!=isParsableDouble(v,0,v.length()))wrong++;
+		}
+		System.out.println("isParsableDouble disagreements: "+wrong+" (expected 0)");
+		System.out.println("--- Fast double parsing ---");
+		wrong = 0;
+		final int ndoubles = 1000000;
+		String[] doubles = new String[ndoubles];
+		for(int i=0;i<ndoubles;i++){
+			String v;
+			switch(random.nextInt(8)){
+			case 0:// typical coordinate
+				v = (random.nextInt(8001)-4000)+"."+random.nextInt(100);
+				break;
+			case 1:// integer
+				v = Integer.toString(random.nextInt(2001)-1000);
+				break;
+			case 2:// shortest representation of a random double
+				v = Double.toString(random.nextDouble()*Math.pow(10, random.nextInt(40)-20));
+				break;
+			case 3:// many digits, near the 53 bit limit
+				v = Long.toString(random.nextLong()>>>random.nextInt(20))+"."+Long.toString(random.nextLong()>>>40);
+				break;
+			case 4:// explicit exponent, around the fast path limits
+				v = random.nextInt(100000)+"e"+(random.nextInt(61)-30);
+				break;
+			case 5:// leading and trailing zeros
+				v = "00"+random.nextInt(1000)+"."+"000".substring(random.nextInt(3))+random.nextInt(1000)+"000";
+				break;
+			case 6:// any bit pattern
+				v = Double.toString(Double.longBitsToDouble(random.nextLong()));
+				break;
+			default:// random characters
+				char[] chars = new char[1+random.nextInt(8)];
+				for(int j=0;j<chars.length;j++)chars[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+				v = new String(chars);
+				break;
+			}
+			doubles[i] = v;
+			Object jdk, fast;
+			try{jdk=Double.doubleToRawLongBits(Double.parseDouble(v));}catch(NumberFormatException e){jdk=null;}
+			try{fast=Double.doubleToRawLongBits(parseDouble(v,0,v.length()));}catch(NumberFormatException e){fast=null;}
+			if(!java.util.Objects.equals(jdk, fast)){
+				if(wrong<10)System.out.println("parseDouble(\""+v+"\")="+fast+", JDK gives "+jdk);
+				wrong++;
+			}
+		}
+		System.out.println("parseDouble disagreements: "+wrong+" (expected 0)");
+		for(int i=0;i<ndoubles;i++){
+			doubles[i] = (random.nextInt(8001)-4000)+"."+random.nextInt(10);
+		}
+		for(int round=0;round<3;round++){
+			double jdkSum = 0, fastSum = 0;
+			long t0 = System.nanoTime();
+			for(String v:doubles)jdkSum += Double.parseDouble(v);
+			long t1 = System.nanoTime();
+			for(String v:doubles)fastSum += parseDouble(v,0,v.length());
+			long t2 = System.nanoTime();
+			System.out.println("round "+round+": JDK "+(t1-t0)/ndoubles+" ns, fast "+(t2-t1)/ndoubles+" ns"+(jdkSum==fastSum?"":" (mismatch)"));
+		}
+		System.out.println("--- Double formatting ---");
+		wrong = 0;
+		int longer = 0;
+		double[] values = new double[ndoubles];
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<ndoubles;i++){
+			double v;
+			switch(random.nextInt(5)){
+			case 0:// typical coordinate
+				v = Double.parseDouble((random.nextInt(8001)-4000)+"."+random.nextInt(100));
+				break;
+			case 1:// integer
+				v = random.nextInt(2001)-1000;
+				break;
+			case 2:// random double at any scale
+				v = (random.nextDouble()-0.5)*Math.pow(10, random.nextInt(40)-20);
+				break;
+			case 3:// results of arithmetic, like after a rotation
+				v = Math.cos(random.nextDouble())*(random.nextInt(2001)-1000);
+				break;
+			default:// any bit pattern
+				v = Double.longBitsToDouble(random.nextLong());
+				break;
+			}
+			values[i] = v;
+			sb.setLength(0);
+			appendDouble(sb,v);
+			String s = sb.toString();
+			if(Double.doubleToLongBits(Double.parseDouble(s))!=Double.doubleToLongBits(v)){
+				if(wrong<10)System.out.println("appendDouble("+Double.toString(v)+") gave "+s);
+				wrong++;
+			}
+			if(s.length()>Double.toString(v).length())longer++;
+		}
+		System.out.println("appendDouble round trip failures: "+wrong+" (expected 0)");
+		System.out.println("appendDouble longer than JDK: "+longer);
+		for(int i=0;i<ndoubles;i++){
+			values[i] = Double.parseDouble((random.nextInt(8001)-4000)+"."+random.nextInt(10));
+		}
+		for(int round=0;round<3;round++){
+			long t0 = System.nanoTime();
+			sb.setLength(0);
+			for(double v:values){
+				sb.append(v);
+				if(sb.length()>1<<20)sb.setLength(0);
+			}
+			long t1 = System.nanoTime();
+			sb.setLength(0);
+			for(double v:values){
+				appendDouble(sb,v);
+				if(sb.length()>1<<20)sb.setLength(0);
+			}
+			long t2 = System.nanoTime();
+			System.out.println("round "+round+": JDK "+(t1-t0)/ndoubles+" ns, fast "+(t2-t1)/ndoubles+" ns");
+		}
 	}
 }
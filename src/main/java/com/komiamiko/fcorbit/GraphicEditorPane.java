@@ -6,8 +6,8 @@ import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.LayoutManager;
+import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Area;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
@@ -19,8 +19,12 @@ import java.util.IdentityHashMap;
 
 import javax.swing.JPanel;
 
-import com.komiamiko.fcorbit.document.FCDocumentLine;
+import com.komiamiko.fcorbit.document.FCDocument;
 import com.komiamiko.fcorbit.document.FCObj;
+import com.komiamiko.fcorbit.document.FCObjStore;
+import com.komiamiko.fcorbit.document.FCSelection;
+import com.komiamiko.fcorbit.document.FCType;
+import com.komiamiko.fcorbit.document.JointGraph;
 
 /**
  * The graphical editor component
@@ -34,6 +38,27 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 	public static final double ROUND_RADIUS = 2;
 	public static final double JOINT_RADIUS_OUTER = 4;
 	public static final double JOINT_RADIUS_INNER = 2;
+	/**
+	 * How far outside its bounds an object may be drawn, in world units,
+	 * from outlines wider than the object and joints on its corners
+	 */
+	public static final double CULL_MARGIN = JOINT_RADIUS_OUTER + 6;
+	/**
+	 * How far outside the window an object may be drawn, in pixels, from antialiasing
+	 */
+	public static final double CULL_MARGIN_PIXELS = 2;
+	/**
+	 * Objects smaller than this on screen, in pixels, are drawn without joints
+	 */
+	public static final double LOD_JOINTS_PIXELS = 16;
+	/**
+	 * Objects smaller than this on screen, in pixels, are drawn as a plain box
+	 */
+	public static final double LOD_BOX_PIXELS = 4;
+	/**
+	 * Objects smaller than this on screen, in pixels, are added to a coverage mask
+	 */
+	public static final double LOD_SUBPIXEL_PIXELS = 1;
 	
 	public static final Color TRANSPARENT = new Color(0,0,0,0);
 	public static final Color[] ATRANSPARENT = {TRANSPARENT,TRANSPARENT};
@@ -51,6 +76,10 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 	public static final Color[] CCW_WHEEL = {Color.decode("#ce49a3"),Color.decode("#ffcfce")};
 	public static final Color[] WOOD_ROD = {Color.decode("#6a3502"),Color.decode("#b55a04")};
 	public static final Color[] STATIC_OBJECT = {Color.decode("#007f09"),Color.decode("#01be02")};
+	/**
+	 * Render colors of each type by {@link FCType#id}, outline then fill
+	 */
+	private static final Color[][] TYPE_COLORS = makeTypeColors();
 	public static final Color SELECTED_OVERLAY = Color.decode("#bbbbbb");
 	public static final Color SELECTED_OVERLAY_FIRST = Color.decode("#dddddd");
 	public static final float OVERLAY_ALPHA = 0.5f;
@@ -68,6 +97,21 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 	public static final double ANCHORX_MAX = BOUNDX * 3;
 	public static final double ANCHORY_MAX = BOUNDY * 3;
 	
+	/**
+	 * Passes for {@link #drawObject(Graphics2D, FCObjStore, int, int)}
+	 */
+	private static final int PASS_OUTLINE = 0;
+	private static final int PASS_FILL = 1;
+	private static final int PASS_JOINTS = 2;
+	private static final int PASS_SELECTION = 3;
+	/**
+	 * Levels of detail, see {@link #detail(FCObjStore, int)}
+	 */
+	private static final int DETAIL_SUBPIXEL = 0;
+	private static final int DETAIL_BOX = 1;
+	private static final int DETAIL_SHAPE = 2;
+	private static final int DETAIL_FULL = 3;
+	
 	/**
 	 * Which keys are held down
 	 */
@@ -126,9 +170,57 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 	 */
 	public boolean showGrid;
 	
-	public ArrayList<FCDocumentLine> objDoc;
-	public BitSet objSel;
-	public BitSet backupSel = new BitSet();
+	public FCDocument objDoc = FCDocument.EMPTY;
+	public FCSelection objSel;
+	public FCSelection backupSel = new FCSelection();
+	/**
+	 * Columns of the FC objects in {@link #objDoc}, use {@link #getObjStore()}
+	 */
+	public FCObjStore objStore = new FCObjStore();
+	/**
+	 * Document that {@link #objStore} was built from
+	 */
+	private FCDocument objStoreDoc;
+	/**
+	 * Which objects are jointed together, use {@link #getJointGraph()}
+	 */
+	private final JointGraph jointGraph = new JointGraph();
+	/**
+	 * Store and rebuild count that {@link #jointGraph} was built from
+	 */
+	private FCObjStore jointGraphStore;
+	private int jointGraphBuild;
+	/**
+	 * Image for the selection and grid overlay, kept between frames,
+	 * see {@link #prepareLayer(RenderLayer, int, int)}
+	 */
+	private final RenderLayer overlayLayer = new RenderLayer(1);
+	/**
+	 * Pieces smaller than a pixel, kept between frames
+	 */
+	private final CoverageMask coverage = new CoverageMask();
+	/**
+	 * Joint markers, drawn once per zoom level
+	 */
+	private final JointSprites jointSprites = new JointSprites(JOINT_RADIUS_OUTER, JOINT_RADIUS_INNER);
+	/**
+	 * Graphics in screen space for stamping joints, only while painting
+	 */
+	private Graphics2D jointGraphics;
+	/**
+	 * Visible rows of level and design objects while painting,
+	 * kept between frames and only grown when the store gets bigger
+	 */
+	private int[] levelRows = new int[0], designRows = new int[0];
+	/**
+	 * World to screen transform of the frame being painted,
+	 * screen x is {@code x*paintScale+paintOffsetx}
+	 */
+	private double paintScale, paintOffsetx, paintOffsety;
+	/**
+	 * Number of frames painted, for reports
+	 */
+	private long frames;
 	
 	public ActiveCommand command = new CommandNone(this);
 	
@@ -172,220 +264,476 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 		// Fetch values
 		Graphics2D g = (Graphics2D) og;
 		int width = getWidth(), height = getHeight();
-		double cx = width*0.5, cy = height*0.5;
-		long tracker = Main.ticker;
-		double scale = getScale();
-		double anchorx = this.anchorx;
-		double anchory = this.anchory;
 		boolean showWireframe = this.showWireframe;
 		boolean showGrid = this.showGrid;
-		// Make layers
-		RenderLayer design = new RenderLayer(3,width,height);
-		design.translate(cx, cy);
-		design.scale(scale, scale);
-		design.translate(-anchorx, -anchory);
-		RenderLayer level = new RenderLayer(2,width,height);
-		level.translate(cx, cy);
-		level.scale(scale, scale);
-		level.translate(-anchorx, -anchory);
-		RenderLayer overlays = new RenderLayer(1,width,height);
-		overlays.translate(cx, cy);
-		overlays.scale(scale, scale);
-		overlays.translate(-anchorx, -anchory);
-		int leveln = -2;
+		frames++;
 		// Sort objects
-		ArrayList<FCObj> renderObjs = new ArrayList<>();
-		for(FCDocumentLine o:objDoc) {
-			if(o instanceof FCObj) {
-				renderObjs.add((FCObj)o);
+		FCObjStore store = getObjStore();
+		int[] renderOrder = store.zOrder();
+		int n = renderOrder.length;
+		if(levelRows.length<n){
+			levelRows = new int[n];
+			designRows = new int[n];
+		}
+		int[] levelRows = this.levelRows, designRows = this.designRows;
+		int levelCount = 0, designCount = 0;
+		// Visible part of the world
+		double scale = getScale();
+		double viewx = (width*0.5+CULL_MARGIN_PIXELS)/scale+CULL_MARGIN;
+		double viewy = (height*0.5+CULL_MARGIN_PIXELS)/scale+CULL_MARGIN;
+		paintScale = scale;
+		paintOffsetx = width*0.5-anchorx*scale;
+		paintOffsety = height*0.5-anchory*scale;
+		coverage.prepare(width, height);
+		double minx = anchorx-viewx, maxx = anchorx+viewx;
+		double miny = anchory-viewy, maxy = anchory+viewy;
+		double[] xs = store.x, ys = store.y, hs = store.h, extentX = store.extentX, extentY = store.extentY;
+		for(int row:renderOrder){
+			// Skip objects entirely outside the view, water rods are drawn twice as tall
+			double ex = extentX[row], ey = extentY[row];
+			if(Bits.readBit(store.typeData[row], FCObj.TYPE_NOSELFCOLLIDE)){
+				ex += Math.abs(hs[row]);
+				ey += Math.abs(hs[row]);
+			}
+			if(xs[row]+ex<minx||xs[row]-ex>maxx||ys[row]+ey<miny||ys[row]-ey>maxy)continue;
+			if(Bits.readBit(store.typeData[row], FCObj.TYPE_DESIGN)){
+				designRows[designCount++] = row;
+			}else{
+				levelRows[levelCount++] = row;
 			}
 		}
-		renderObjs.sort(FCObj.Z_COMPARE);
 		// Background
 		g.setColor(BACKGROUND);
 		g.fillRect(0, 0, width, height);
-		// Iterate and draw onto layers
-		for(FCObj obj:renderObjs){
-			if(tracker!=Main.ticker)break;
-			int z = obj.z;
-			double x = obj.x, y = obj.y, w = obj.w, h = obj.h, r = obj.r;
-			int typeData = obj.getTypeData();
-			boolean isselected = objSel.get(obj.getLineNumber());
-			boolean isselectedfirst = false;
-			boolean isdesign = Bits.readBit(typeData, FCObj.TYPE_DESIGN);
-			boolean iscircle = Bits.readBit(typeData, FCObj.TYPE_CIRCLE);
-			boolean isgoal = Bits.readBit(typeData, FCObj.TYPE_GOAL);
-			boolean isjointable = Bits.readBit(typeData, FCObj.TYPE_JOINTABLE);
-			boolean iscollide = Bits.readBit(typeData, FCObj.TYPE_COLLIDES);
-			boolean ismovable = Bits.readBit(typeData, FCObj.TYPE_MOVABLE);
-			boolean isrod = isdesign&&!iscircle&&!isgoal;
-			boolean iswater = isrod&&Bits.readBit(typeData, FCObj.TYPE_NOSELFCOLLIDE);
-			boolean isstatic = !isdesign&&iscollide&&!ismovable;
-			Color[] colors = getColorsFor(typeData);
-			Color colOutline = colors[0];
-			Color colFill = colors[1];
-			RenderLayer target = design;// Where to render to
-			if(!isdesign){// Level
-				if(z>leveln){
-					// New layer
-					leveln=z;
-					level.renderTo(g);
-					level = new RenderLayer(2,width,height);
-					level.translate(cx, cy);
-					level.scale(scale, scale);
-					level.translate(-anchorx, -anchory);
+		// Draw straight onto the screen, in world coordinates
+		Graphics2D wg = (Graphics2D) g.create();
+		wg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		wg.translate(width*0.5, height*0.5);
+		wg.scale(scale, scale);
+		wg.translate(-anchorx, -anchory);
+		jointGraphics = (Graphics2D) g.create();
+		jointGraphics.setTransform(new AffineTransform());
+		// Level, one z at a time
+		for(int start=0;start<levelCount;){
+			int z = store.z[levelRows[start]];
+			int end = start+1;
+			while(end<levelCount&&store.z[levelRows[end]]==z)end++;
+			drawPasses(wg,store,levelRows,start,end,showWireframe);
+			coverage.renderTo(g);
+			start = end;
+		}
+		// Design, all together on top
+		drawPasses(wg,store,designRows,0,designCount,showWireframe);
+		coverage.renderTo(g);
+		wg.dispose();
+		jointGraphics.dispose();
+		jointGraphics = null;
+		// Selection and grid, which are see through as a whole
+		boolean anySelected = !objSel.isEmpty();
+		if(anySelected||showGrid){
+			RenderLayer overlays = prepareLayer(overlayLayer,width,height);
+			Graphics2D ig = overlays.graphics[0];
+			if(anySelected){
+				for(int i=0;i<levelCount;i++){
+					int row = levelRows[i];
+					if(objSel.contains(store.objs[row]))drawSelection(ig,store,row);
 				}
-				target = level;
+				for(int i=0;i<designCount;i++){
+					int row = designRows[i];
+					if(objSel.contains(store.objs[row]))drawSelection(ig,store,row);
+				}
+			}
+			if(showGrid){
+				ig.setColor(GRID);
+				ig.drawLine(-BOUNDX, -BOUNDY, BOUNDX, -BOUNDY);
+				ig.drawLine(-BOUNDX, 0, BOUNDX, 0);
+				ig.drawLine(-BOUNDX, BOUNDY, BOUNDX, BOUNDY);
+				ig.drawLine(-BOUNDX, -BOUNDY, -BOUNDX, BOUNDY);
+				ig.drawLine(0, -BOUNDY, 0, BOUNDY);
+				ig.drawLine(BOUNDX, -BOUNDY, BOUNDX, BOUNDY);
+			}
+			g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, OVERLAY_ALPHA));
+			overlays.renderTo(g);
+			g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER));
+		}
+		command.render(g);
+	}
+	
+	/**
+	 * Draw some objects as one layer: all outlines, then all fills,
+	 * then all joints, which looks the same as drawing each pass
+	 * to its own image and stacking them
+	 * 
+	 * @param g graphics in world coordinates
+	 * @param store columns of the document
+	 * @param rows rows to draw, in order
+	 * @param start index in rows to start at
+	 * @param end index in rows to end at, exclusive
+	 * @param showWireframe draw as wireframe?
+	 */
+	private void drawPasses(Graphics2D g,FCObjStore store,int[] rows,int start,int end,boolean showWireframe){
+		for(int i=start;i<end;i++){
+			int row = rows[i];
+			switch(detail(store,row)){
+			case DETAIL_SUBPIXEL:{
+				double scale = paintScale;
+				double area = Math.abs(store.w[row]*store.h[row])*scale*scale;
+				if(Bits.readBit(store.typeData[row], FCObj.TYPE_CIRCLE))area *= Math.PI/4;
+				coverage.add(store.x[row]*scale+paintOffsetx, store.y[row]*scale+paintOffsety, area, boxColor(store,row));
+				break;
+			}
+			case DETAIL_BOX:
+				drawBox(g,store,row,boxColor(store,row));
+				break;
+			default:
+				drawObject(g,store,row,PASS_OUTLINE);
 			}
-			double iw = Math.abs(w-8);
-			double ih = Math.abs(h-8);
-			Graphics2D ig = target.graphics[0];
-			AffineTransform ot = ig.getTransform();
-			if(iscircle){// Circle
-				double ow = Math.max(w, iw+2);
-				double oh = Math.max(h, ih+2);
-				ig.translate(x, y);
-				ig.rotate(Math.toRadians(r));
-				ig.setColor(colOutline);
+		}
+		if(!showWireframe){
+			for(int i=start;i<end;i++){
+				if(detail(store,rows[i])>=DETAIL_SHAPE)drawObject(g,store,rows[i],PASS_FILL);
+			}
+		}
+		for(int i=start;i<end;i++){
+			if(detail(store,rows[i])==DETAIL_FULL)drawObject(g,store,rows[i],PASS_JOINTS);
+		}
+	}
+	
+	/**
+	 * How much detail to draw an object with, from its size on screen,
+	 * joints are also skipped when they themselves would be too small to make out
+	 * 
+	 * @param store columns of the document
+	 * @param row row of the object
+	 * @return level of detail, such as {@link #DETAIL_FULL}
+	 */
+	private int detail(FCObjStore store,int row){
+		double pixels = 2*Math.max(store.extentX[row], store.extentY[row])*paintScale;
+		if(pixels<LOD_SUBPIXEL_PIXELS)return DETAIL_SUBPIXEL;
+		if(pixels<LOD_BOX_PIXELS)return DETAIL_BOX;
+		if(pixels<LOD_JOINTS_PIXELS||JOINT_RADIUS_OUTER*2*paintScale<LOD_BOX_PIXELS)return DETAIL_SHAPE;
+		return DETAIL_FULL;
+	}
+	
+	/**
+	 * Colour which stands for an object when it is too small to draw properly,
+	 * the outline for rods and wireframes, which are mostly outline,
+	 * otherwise the fill
+	 * 
+	 * @param store columns of the document
+	 * @param row row of the object
+	 * @return the colour
+	 */
+	private Color boxColor(FCObjStore store,int row){
+		int typeData = store.typeData[row];
+		boolean isrod = Bits.readBit(typeData, FCObj.TYPE_DESIGN)&&!Bits.readBit(typeData, FCObj.TYPE_CIRCLE)&&!Bits.readBit(typeData, FCObj.TYPE_GOAL);
+		Color[] colors = TYPE_COLORS[store.types[row].id];
+		return showWireframe||isrod?colors[0]:colors[1];
+	}
+	
+	/**
+	 * Fill the axis aligned bounds of an object, at least a pixel across
+	 * 
+	 * @param g graphics in world coordinates
+	 * @param store columns of the document
+	 * @param row row of the object
+	 * @param color colour to fill with
+	 */
+	private void drawBox(Graphics2D g,FCObjStore store,int row,Color color){
+		double pixel = 0.5/paintScale;
+		double ex = Math.max(store.extentX[row], pixel), ey = Math.max(store.extentY[row], pixel);
+		g.setColor(color);
+		g.fill(new Rectangle2D.Double(store.x[row]-ex, store.y[row]-ey, ex*2, ey*2));
+	}
+	
+	/**
+	 * Draw the selection overlay of one object, with as much detail as the object itself
+	 * 
+	 * @param g graphics in world coordinates
+	 * @param store columns of the document
+	 * @param row row of the object
+	 */
+	private void drawSelection(Graphics2D g,FCObjStore store,int row){
+		if(detail(store,row)<=DETAIL_BOX){
+			drawBox(g,store,row,SELECTED_OVERLAY);
+		}else{
+			drawObject(g,store,row,PASS_SELECTION);
+		}
+	}
+	
+	/**
+	 * Draw one pass of one object
+	 * 
+	 * @param ig graphics in world coordinates
+	 * @param store columns of the document
+	 * @param row row of the object
+	 * @param pass which pass, such as {@link #PASS_OUTLINE}
+	 */
+	private void drawObject(Graphics2D ig,FCObjStore store,int row,int pass){
+		boolean showWireframe = this.showWireframe;
+		double x = store.x[row], y = store.y[row], w = store.w[row], h = store.h[row], r = store.r[row];
+		int typeData = store.typeData[row];
+		boolean isdesign = Bits.readBit(typeData, FCObj.TYPE_DESIGN);
+		boolean iscircle = Bits.readBit(typeData, FCObj.TYPE_CIRCLE);
+		boolean isgoal = Bits.readBit(typeData, FCObj.TYPE_GOAL);
+		boolean isjointable = Bits.readBit(typeData, FCObj.TYPE_JOINTABLE);
+		boolean iscollide = Bits.readBit(typeData, FCObj.TYPE_COLLIDES);
+		boolean ismovable = Bits.readBit(typeData, FCObj.TYPE_MOVABLE);
+		boolean isrod = isdesign&&!iscircle&&!isgoal;
+		boolean iswater = isrod&&Bits.readBit(typeData, FCObj.TYPE_NOSELFCOLLIDE);
+		boolean isstatic = !isdesign&&iscollide&&!ismovable;
+		Color[] colors = TYPE_COLORS[store.types[row].id];
+		double iw = Math.abs(w-8);
+		double ih = Math.abs(h-8);
+		AffineTransform ot = ig.getTransform();
+		ig.translate(x, y);
+		ig.rotate(Math.toRadians(r));
+		if(iscircle){// Circle
+			double ow = Math.max(w, iw+2);
+			double oh = Math.max(h, ih+2);
+			switch(pass){
+			case PASS_OUTLINE:
+				ig.setColor(colors[0]);
 				if(showWireframe){
 					ig.draw(new Ellipse2D.Double(ow*-0.5, oh*-0.5, ow, oh));
 				}else{
 					ig.fill(new Ellipse2D.Double(ow*-0.5, oh*-0.5, ow, oh));
 				}
-				ig.setTransform(ot);
+				break;
+			case PASS_FILL:
+				ig.setColor(colors[1]);
+				ig.fill(new Ellipse2D.Double(iw*-0.5, ih*-0.5, iw, ih));
+				break;
+			case PASS_JOINTS:
 				if(isjointable){
-					ig = target.graphics[2];
-					ot = ig.getTransform();
-					ig.translate(x, y);
-					ig.rotate(Math.toRadians(r));
-					drawJoint(ig,JOINT_CENTER,0,0);
-					drawJoint(ig,ow*0.5,0);
-					drawJoint(ig,ow*-0.5,0);
-					drawJoint(ig,0,oh*0.5);
-					drawJoint(ig,0,oh*-0.5);
+					AffineTransform jt = ig.getTransform();
+					stampJoint(jt,JOINT_CENTER,0,0);
+					stampJoint(jt,ow*0.5,0);
+					stampJoint(jt,ow*-0.5,0);
+					stampJoint(jt,0,oh*0.5);
+					stampJoint(jt,0,oh*-0.5);
 					if(iw>40){
-						drawJoint(ig,20,0);
-						drawJoint(ig,-20,0);
+						stampJoint(jt,20,0);
+						stampJoint(jt,-20,0);
 					}
 					if(ih>40){
-						drawJoint(ig,0,20);
-						drawJoint(ig,0,-20);
+						stampJoint(jt,0,20);
+						stampJoint(jt,0,-20);
 					}
-					ig.setTransform(ot);
-				}
-				if(!showWireframe){
-					ig = target.graphics[1];
-					ot = ig.getTransform();
-					ig.translate(x, y);
-					ig.rotate(Math.toRadians(r));
-					ig.setColor(colFill);
-					ig.fill(new Ellipse2D.Double(iw*-0.5, ih*-0.5, iw, ih));
-					ig.setTransform(ot);
-				}
-				if(isselected){
-					ig = overlays.graphics[0];
-					ig.translate(x, y);
-					ig.rotate(Math.toRadians(r));
-					ig.setColor(isselectedfirst?SELECTED_OVERLAY_FIRST:SELECTED_OVERLAY);
-					ig.fill(new Ellipse2D.Double(ow*-0.5, oh*-0.5, ow, oh));
-					ig.setTransform(ot);
-				}
-			}else{// Rectangle or rod
-				double ow,oh;
-				if(isrod){
-					ow = w;
-					oh = h;
-					if(iswater&&!showWireframe)oh*=2;
-					iw = Math.abs(ow-4);
-					ih = Math.abs(oh-4);
-				}else{
-					ow = Math.max(w, iw+2);
-					oh = Math.max(h, ih+2);
 				}
-				ig.translate(x, y);
-				ig.rotate(Math.toRadians(r));
-				if(!isrod&&isstatic&&!showWireframe){
-					ow+=1;
-					oh+=1;
-					ig.translate(0.5, 0.5);
-				}
-				ig.setColor(colOutline);
+				break;
+			case PASS_SELECTION:
+				ig.setColor(SELECTED_OVERLAY);
+				ig.fill(new Ellipse2D.Double(ow*-0.5, oh*-0.5, ow, oh));
+				break;
+			}
+		}else{// Rectangle or rod
+			double ow,oh;
+			if(isrod){
+				ow = w;
+				oh = h;
+				if(iswater&&!showWireframe)oh*=2;
+				iw = Math.abs(ow-4);
+				ih = Math.abs(oh-4);
+			}else{
+				ow = Math.max(w, iw+2);
+				oh = Math.max(h, ih+2);
+			}
+			if(!isrod&&isstatic&&!showWireframe){
+				ow+=1;
+				oh+=1;
+				if(pass==PASS_OUTLINE)ig.translate(0.5, 0.5);
+			}
+			switch(pass){
+			case PASS_OUTLINE:
+				ig.setColor(colors[0]);
 				if(showWireframe){
 					ig.draw(new Rectangle2D.Double(ow*-0.5, oh*-0.5, ow, oh));
 				}else{
 					ig.fill(new RoundRectangle2D.Double(ow*-0.5, oh*-0.5, ow, oh, Math.PI/2, ROUND_RADIUS));
 				}
-				ig.setTransform(ot);
+				break;
+			case PASS_FILL:
+				ig.setColor(colors[1]);
+				ig.fill(new Rectangle2D.Double(iw*-0.5, ih*-0.5, iw, ih));
+				break;
+			case PASS_JOINTS:
 				if(isjointable){
-					ig = target.graphics[2];
-					ot = ig.getTransform();
-					ig.translate(x, y);
-					ig.rotate(Math.toRadians(r));
+					AffineTransform jt = ig.getTransform();
 					if(isrod){
-						drawJoint(ig,ow*0.5,0);
-						drawJoint(ig,ow*-0.5,0);
+						stampJoint(jt,ow*0.5,0);
+						stampJoint(jt,ow*-0.5,0);
 					}else{
-						drawJoint(ig,0,0);
-						drawJoint(ig,ow*0.5,oh*0.5);
-						drawJoint(ig,ow*-0.5,oh*0.5);
-						drawJoint(ig,ow*0.5,-oh*0.5);
-						drawJoint(ig,ow*-0.5,-oh*0.5);
+						stampJoint(jt,0,0);
+						stampJoint(jt,ow*0.5,oh*0.5);
+						stampJoint(jt,ow*-0.5,oh*0.5);
+						stampJoint(jt,ow*0.5,-oh*0.5);
+						stampJoint(jt,ow*-0.5,-oh*0.5);
 					}
-					ig.setTransform(ot);
-				}
-				if(!showWireframe){
-					ig = target.graphics[1];
-					ot = ig.getTransform();
-					ig.translate(x, y);
-					ig.rotate(Math.toRadians(r));
-					ig.setColor(colFill);
-					ig.fill(new Rectangle2D.Double(iw*-0.5, ih*-0.5, iw, ih));
-					ig.setTransform(ot);
-				}
-				if(isselected){
-					ig = overlays.graphics[0];
-					ig.translate(x, y);
-					ig.rotate(Math.toRadians(r));
-					ig.setColor(isselectedfirst?SELECTED_OVERLAY_FIRST:SELECTED_OVERLAY);
-					ig.fill(new RoundRectangle2D.Double(ow*-0.5, oh*-0.5, ow, oh, Math.PI/2, ROUND_RADIUS));
-					ig.setTransform(ot);
 				}
+				break;
+			case PASS_SELECTION:
+				ig.setColor(SELECTED_OVERLAY);
+				ig.fill(new RoundRectangle2D.Double(ow*-0.5, oh*-0.5, ow, oh, Math.PI/2, ROUND_RADIUS));
+				break;
 			}
 		}
-		// Grid
-		if(showGrid){
-			Graphics2D ig = overlays.graphics[0];
-			ig.setColor(GRID);
-			ig.drawLine(-BOUNDX, -BOUNDY, BOUNDX, -BOUNDY);
-			ig.drawLine(-BOUNDX, 0, BOUNDX, 0);
-			ig.drawLine(-BOUNDX, BOUNDY, BOUNDX, BOUNDY);
-			ig.drawLine(-BOUNDX, -BOUNDY, -BOUNDX, BOUNDY);
-			ig.drawLine(0, -BOUNDY, 0, BOUNDY);
-			ig.drawLine(BOUNDX, -BOUNDY, BOUNDX, BOUNDY);
+		ig.setTransform(ot);
+	}
+	
+	/**
+	 * Clear a layer, or make its images again if the window was resized,
+	 * and set it up to draw in world coordinates
+	 * 
+	 * @param layer the layer
+	 * @param width width of the window
+	 * @param height height of the window
+	 * @return the same layer
+	 */
+	private RenderLayer prepareLayer(RenderLayer layer,int width,int height){
+		double scale = getScale();
+		layer.prepare(getGraphicsConfiguration(), width, height);
+		layer.translate(width*0.5, height*0.5);
+		layer.scale(scale, scale);
+		layer.translate(-anchorx, -anchory);
+		return layer;
+	}
+	
+	/**
+	 * Print how often the layer and joint images had to be made
+	 */
+	public void debugReport(){
+		System.out.println("Graphic editor");
+		System.out.println("* Frames = " + frames);
+		System.out.println("* Layer allocations = " + overlayLayer.allocations);
+		System.out.println("* Joint sprite allocations = " + jointSprites.allocations);
+	}
+	
+	/**
+	 * Get the columns of the FC objects in the document,
+	 * rebuilt if the document was replaced since the last call
+	 * 
+	 * @return the store
+	 */
+	public FCObjStore getObjStore(){
+		if(objStoreDoc!=objDoc){
+			objStore.rebuild(objDoc);
+			objStoreDoc = objDoc;
 		}
-		// Finally, render all
-		level.renderTo(g);
-		design.renderTo(g);
-		g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, OVERLAY_ALPHA));
-		overlays.renderTo(g);
-		g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER));
-		command.render(g);
+		return objStore;
+	}
+	
+	/**
+	 * Update the store after a range of lines of the document was replaced,
+	 * so only the new lines are read, see {@link FCObjStore#splice(java.util.List, int, int, int)}
+	 * <br>
+	 * If the store was not built from the document before the change,
+	 * it is left to be rebuilt when next needed.
+	 * 
+	 * @param before the document before the change
+	 * @param first index of the first replaced line
+	 * @param removed number of lines that were replaced
+	 * @param added number of lines put in their place
+	 */
+	public void spliceObjStore(FCDocument before,int first,int removed,int added){
+		if(objStoreDoc!=before)return;
+		objStore.splice(objDoc, first, removed, added);
+		objStoreDoc = objDoc;
+	}
+	
+	/**
+	 * Use a store which was already built from the current document
+	 * 
+	 * @param store the store
+	 */
+	public void setObjStore(FCObjStore store){
+		objStore = store;
+		objStoreDoc = objDoc;
+	}
+	
+	/**
+	 * Get the joint connectivity of the FC objects in the document,
+	 * rebuilt only if the store was rebuilt since the last call,
+	 * since moving objects never changes their joints
+	 * 
+	 * @return the joint graph, nodes are rows of {@link #getObjStore()}
+	 */
+	public JointGraph getJointGraph(){
+		FCObjStore store = getObjStore();
+		if(jointGraphStore!=store||jointGraphBuild!=store.rebuildCount){
+			jointGraph.rebuild(store);
+			jointGraphStore = store;
+			jointGraphBuild = store.rebuildCount;
+		}
+		return jointGraph;
+	}
+	
+	/**
+	 * Extend the selection to every object jointed to a selected object,
+	 * directly or through other objects
+	 */
+	public void selectLinked(){
+		FCObjStore store = getObjStore();
+		JointGraph graph = getJointGraph();
+		BitSet lines = getSelectedLines();
+		BitSet rows = new BitSet();
+		for(int i = lines.nextSetBit(0); i >= 0; i = lines.nextSetBit(i+1)) {
+			rows.set(store.rowOf(i));
+		}
+		graph.selectComponents(rows);
+		for(int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row+1)) {
+			objSel.add(store.objs[row]);
+		}
+	}
+	
+	/**
+	 * Replace the document with one where only the geometry of some lines
+	 * changed, which updates the store in place instead of rebuilding it
+	 * 
+	 * @param doc the new document
+	 * @param lines the lines which may have changed
+	 */
+	public void setObjDocMoved(FCDocument doc,BitSet lines){
+		FCObjStore store = getObjStore();
+		Main.setObjDoc(doc);
+		Main.markObjLinesDirty(lines);
+		store.refreshLines(doc, lines);
+		objStoreDoc = doc;
+	}
+	
+	/**
+	 * Go back to a document from before some lines were moved,
+	 * and forget that those lines were dirty, since their text is already right
+	 * 
+	 * @param doc the earlier document
+	 * @param lines the lines which may have changed since
+	 * @param cleanLines the lines which were not dirty in the earlier document,
+	 *   see {@link Main#cleanObjLines(BitSet)}
+	 */
+	public void restoreObjDocMoved(FCDocument doc,BitSet lines,BitSet cleanLines){
+		setObjDocMoved(doc, lines);
+		Main.unmarkObjLinesDirty(cleanLines);
 	}
 	
 	public void drawJoint(Graphics2D g,double x,double y){
 		drawJoint(g,JOINT,x,y);
 	}
 	public void drawJoint(Graphics2D g,Color color,double x,double y){
-		final double jro = JOINT_RADIUS_OUTER;
-		final double jri = JOINT_RADIUS_INNER;
-		Area area = new Area(new Ellipse2D.Double(x-jro, y-jro, jro*2, jro*2));
-		g.setColor(color);
-		if(showWireframe){
-			g.draw(area);
-		}else{
-			area.subtract(new Area(new Ellipse2D.Double(x-jri, y-jri, jri*2, jri*2)));
-			g.fill(area);
-		}
+		jointSprites.draw(g, color, showWireframe, x, y);
+	}
+	
+	/**
+	 * Draw a joint onto {@link #jointGraphics} while painting
+	 * 
+	 * @param t transform from the object to the screen
+	 * @param x
+	 * @param y
+	 */
+	private void stampJoint(AffineTransform t,double x,double y){
+		stampJoint(t,JOINT,x,y);
+	}
+	private void stampJoint(AffineTransform t,Color color,double x,double y){
+		jointSprites.draw(jointGraphics, t, color, showWireframe, x, y);
 	}
 	
 	public void drawCenteredString(Graphics2D g,String text,int x,int y){
@@ -422,6 +770,15 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 		repaint();
 	}
 	
+	private static Color[][] makeTypeColors(){
+		FCType[] types = FCType.values();
+		Color[][] result = new Color[types.length][];
+		for(FCType type:types){
+			result[type.id] = getColorsFor(type.typeData);
+		}
+		return result;
+	}
+	
 	public static Color[] getColorsFor(int typeData){
 		if(typeData==0)return ATRANSPARENT;// Empty
 		if(Bits.readBit(typeData, FCObj.TYPE_DESIGN)){// Design
@@ -549,12 +906,10 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 	}
 	public FCObj getSelectionPointWorld(double wmx,double wmy){
 		ArrayList<FCObj> candidates = new ArrayList<>();
-		for(FCDocumentLine line:objDoc){
-			if(line instanceof FCObj) {
-				FCObj obj = (FCObj)line;
-				if(obj.contains(wmx,wmy)){
-					candidates.add(obj);
-				}
+		FCObjStore store = getObjStore();
+		for(int row=0;row<store.size;row++){
+			if(store.contains(row,wmx,wmy)){
+				candidates.add(store.objs[row]);
 			}
 		}
 		if(candidates.isEmpty())return null;
@@ -587,19 +942,15 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 		return getSelectionAreaWorld(wmx,wmy,womx,womy);
 	}
 	public ArrayList<FCObj> getSelectionAreaWorld(double wmx,double wmy,double womx,double womy){
-		FCObj dummy = new FCObj();
-		dummy.type = "Empty";
-		dummy.x = (wmx+womx)*0.5;
-		dummy.y = (wmy+womy)*0.5;
-		dummy.w = wmx-womx;
-		dummy.h = wmy-womy;
+		final double cx = (wmx+womx)*0.5;
+		final double cy = (wmy+womy)*0.5;
+		final double cw = wmx-womx;
+		final double ch = wmy-womy;
 		ArrayList<FCObj> candidates = new ArrayList<>();
-		for(FCDocumentLine line:objDoc){
-			if(line instanceof FCObj) {
-				FCObj obj = (FCObj)line;
-				if(dummy.intersects(obj)){
-					candidates.add(obj);
-				}
+		FCObjStore store = getObjStore();
+		for(int row=0;row<store.size;row++){
+			if(store.intersectsRect(row,cx,cy,cw,ch)){
+				candidates.add(store.objs[row]);
 			}
 		}
 		return candidates;
@@ -622,17 +973,19 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 	 * @return
 	 */
 	public double[] getPivot() {
-		int sn = objSel.cardinality();
+		BitSet lines = getSelectedLines();
+		int sn = lines.cardinality();
 		if(sn == 0) {
 			return new double[] {0, 0, 0};
 		}
 		double rx = 0, ry = 0, rr = 0;
-		for(int i = objSel.nextSetBit(0); i >= 0; i = objSel.nextSetBit(i+1)) {
-			FCObj obj = (FCObj)objDoc.get(i);
-			rx += obj.x;
-			ry += obj.y;
+		FCObjStore store = getObjStore();
+		for(int i = lines.nextSetBit(0); i >= 0; i = lines.nextSetBit(i+1)) {
+			int row = store.rowOf(i);
+			rx += store.x[row];
+			ry += store.y[row];
 			if(sn == 1) {
-				rr = Math.toRadians(obj.r);
+				rr = Math.toRadians(store.r[row]);
 			}
 		}
 		double mul = 1d / sn;
@@ -641,14 +994,21 @@ public class GraphicEditorPane extends JPanel implements KeyTracker {
 		return new double[] {rx, ry, rr};
 	}
 	
+	/**
+	 * Get the line numbers of the selected objects in the current document
+	 * 
+	 * @return a new set of line numbers
+	 */
+	public BitSet getSelectedLines(){
+		return objSel.toLines(getObjStore());
+	}
+	
 	public void setBackupSel(){
-		backupSel.clear();
-		backupSel.or(objSel);
+		backupSel.copyFrom(objSel);
 	}
 	
 	public void restoreBackupSel(){
-		objSel.clear();
-		objSel.or(backupSel);
+		objSel.copyFrom(backupSel);
 	}
 	
 	public void tryUndo(){
@@ -0,0 +1,139 @@
+package com.komiamiko.fcorbit;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+
+/**
+ * Joint markers drawn once into small images, then stamped where needed
+ * <br>
+ * A joint is a ring, which used to be built as one {@link java.awt.geom.Area}
+ * minus another for every joint on every frame. Joints are circles,
+ * so they look the same at any rotation, and only the zoom and
+ * wireframe setting change how they are drawn.
+ * One image is kept per colour, and all of them are made again when
+ * the zoom or wireframe setting changes.
+ * <br>
+ * Joints are placed on whole pixels, so they may be up to half a pixel
+ * off from where the shape itself would have put them.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public class JointSprites {
+
+	/**
+	 * Ring with the outer and inner radius, centered on the origin, in world units
+	 */
+	private final Shape ring;
+	/**
+	 * Outer circle, in world units
+	 */
+	private final Shape outer;
+	private final double outerRadius;
+	/**
+	 * Settings the images were made for
+	 */
+	private double scale;
+	private boolean wireframe;
+	/**
+	 * Image for each colour
+	 */
+	private final HashMap<Color,BufferedImage> sprites = new HashMap<>();
+	/**
+	 * Number of times an image was made, for reports
+	 */
+	public int allocations;
+
+	/**
+	 * Make joint markers
+	 *
+	 * @param outerRadius outer radius of the ring, in world units
+	 * @param innerRadius inner radius of the ring, in world units
+	 */
+	public JointSprites(double outerRadius,double innerRadius){
+		this.outerRadius = outerRadius;
+		outer = new Ellipse2D.Double(-outerRadius, -outerRadius, outerRadius*2, outerRadius*2);
+		Path2D.Double path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+		path.append(outer, false);
+		path.append(new Ellipse2D.Double(-innerRadius, -innerRadius, innerRadius*2, innerRadius*2), false);
+		ring = path;
+	}
+
+	/**
+	 * Draw a joint
+	 *
+	 * @param g graphics, with a transform which only translates, rotates and scales uniformly
+	 * @param color colour of the joint
+	 * @param wireframe draw only the outline?
+	 * @param x x of the center, in the coordinates of g
+	 * @param y y of the center, in the coordinates of g
+	 */
+	public void draw(Graphics2D g,Color color,boolean wireframe,double x,double y){
+		AffineTransform t = g.getTransform();
+		g.setTransform(new AffineTransform());
+		draw(g, t, color, wireframe, x, y);
+		g.setTransform(t);
+	}
+
+	/**
+	 * Draw a joint without changing the transform of the graphics,
+	 * which is faster when drawing many joints
+	 *
+	 * @param device graphics with the identity transform
+	 * @param t transform to device space, which only translates, rotates and scales uniformly
+	 * @param color colour of the joint
+	 * @param wireframe draw only the outline?
+	 * @param x x of the center, before the transform
+	 * @param y y of the center, before the transform
+	 */
+	public void draw(Graphics2D device,AffineTransform t,Color color,boolean wireframe,double x,double y){
+		double scale = Math.sqrt(Math.abs(t.getDeterminant()));
+		// rotations change the scale in the last few bits
+		if(!(Math.abs(scale-this.scale)<=this.scale*1e-6)||wireframe!=this.wireframe){
+			sprites.clear();
+			this.scale = scale;
+			this.wireframe = wireframe;
+		}
+		BufferedImage sprite = sprites.get(color);
+		if(sprite==null){
+			sprite = makeSprite(color);
+			sprites.put(color, sprite);
+		}
+		double dx = t.getScaleX()*x+t.getShearX()*y+t.getTranslateX();
+		double dy = t.getShearY()*x+t.getScaleY()*y+t.getTranslateY();
+		int half = sprite.getWidth()/2;
+		device.drawImage(sprite, (int)Math.round(dx)-half, (int)Math.round(dy)-half, null);
+	}
+
+	/**
+	 * Draw one joint centered in a new image at the current settings
+	 */
+	private BufferedImage makeSprite(Color color){
+		allocations++;
+		// room for the ring, a wireframe line half outside it, and antialiasing
+		int half = (int)Math.ceil((outerRadius+0.5)*scale)+1;
+		BufferedImage sprite = new BufferedImage(half*2, half*2, BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics2D g = sprite.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.translate(half, half);
+		g.scale(scale, scale);
+		g.setColor(color);
+		if(wireframe){
+			g.setStroke(new BasicStroke(1));
+			g.draw(outer);
+		}else{
+			g.fill(ring);
+		}
+		g.dispose();
+		return sprite;
+	}
+
+}
@@ -7,12 +7,18 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TimerTask;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.JComponent;
 import javax.swing.JFrame;
@@ -23,12 +29,18 @@ import javax.swing.event.CaretEvent;
 import javax.swing.event.CaretListener;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.text.Element;
 import javax.swing.text.PlainDocument;
+import javax.swing.text.Segment;
 
-import com.komiamiko.fcorbit.document.CommentLine;
+import com.komiamiko.fcorbit.document.FCDocument;
 import com.komiamiko.fcorbit.document.FCDocumentLine;
+import com.komiamiko.fcorbit.document.FCMLReader;
 import com.komiamiko.fcorbit.document.FCObj;
+import com.komiamiko.fcorbit.document.FCObjStore;
+import com.komiamiko.fcorbit.document.FCSelection;
 
 /**
  * The main class
@@ -42,6 +54,19 @@ public class Main {
 	 * Minimum number of pixels movement to register a mouse drag
 	 */
 	public static final int MOUSE_DRAG_MIN_PIXELS = 4;
+	/**
+	 * Text at least this many characters long is parsed in parallel
+	 */
+	public static final int PARALLEL_PARSE_THRESHOLD = 1<<16;
+	/**
+	 * Approximate number of characters per chunk when parsing in parallel
+	 */
+	public static final int PARALLEL_PARSE_CHUNK = 1<<14;
+	/**
+	 * Edits which need at least this many characters parsed
+	 * are parsed on the background worker instead of right away
+	 */
+	public static final int BACKGROUND_PARSE_THRESHOLD = 1<<16;
 	
 	/**
 	 * Main window
@@ -76,24 +101,46 @@ public class Main {
 	 */
 	public static TimedUndoManagerV2 textUndo;
 	/**
-	 * Editor internal document
+	 * Editor internal document, which is immutable,
+	 * so it is replaced with {@link #setObjDoc(FCDocument)} rather than modified
 	 */
-	public static ArrayList<FCDocumentLine> objDoc;
+	public static FCDocument objDoc = FCDocument.EMPTY;
 	/**
-	 * Editor internal selection
+	 * Editor internal selection, which is kept by line id
+	 * so edits elsewhere do not disturb it
 	 */
-	public static BitSet objSel;
+	public static FCSelection objSel;
+	/**
+	 * Lines of {@link #objDoc} whose text is out of date
+	 */
+	private static final BitSet dirtyLines = new BitSet();
+	/**
+	 * If true, the text may differ from {@link #objDoc} anywhere
+	 */
+	private static boolean objDocDirty;
 	/**
 	 * Changes every update, used to track idling
 	 */
 	public static long ticker;
+	/**
+	 * Changes every time the text changes, used to drop stale parse results
+	 */
+	public static long textVersion;
+	/**
+	 * Runs the sync steps between the text and the objects once per event
+	 */
+	public static final SyncScheduler sync = new SyncScheduler();
+	/**
+	 * Parses large edits in the background
+	 */
+	public static ParseWorker parseWorker;
 	
 	public static final PrintStream console = System.out;
 
 	/**
 	 * The main method
 	 * 
-	 * @param args
+	 * @param args optionally, a level file to open
 	 */
 	public static void main(String[] args) {
 		// Make the graphical objects
@@ -104,18 +151,27 @@ public class Main {
 		textDoc = new PlainDocument();
 		textEditor = new TextEditorPane(textDoc,"",150,150);
 		textSel = textEditor.getSelectedText();
-		objDoc = new ArrayList<>();
-		objSel = new BitSet();
+		objSel = new FCSelection();
 		textUndo = new TimedUndoManagerV2();
+		parseWorker = new ParseWorker("fcml",()->applyParseResult(parseWorker.takeResult()));
 		// Do layout
 		textEditorScroll.setViewportView(textEditor);
 		splitPane.add(graphicEditor);
 		splitPane.add(textEditorScroll);
 		frame.add(splitPane);
 		// Set fields and initialize
-		graphicEditor.objDoc = objDoc;
 		graphicEditor.objSel = objSel;
 		graphicEditor.setBackupSel();
+		ArrayList<FCDocumentLine> lines = new ArrayList<>();
+		parseTextTo(textEditor.getText(),lines,"fcml");
+		setObjDoc(FCDocument.of(lines));
+		if(args.length>0){
+			try{
+				loadFile(Paths.get(args[0]));
+			}catch(IOException e){
+				e.printStackTrace();
+			}
+		}
 		textDoc.addUndoableEditListener(textUndo);
 		addListeners();
 		graphicEditor.init();
@@ -136,17 +192,20 @@ public class Main {
 
 			@Override
 			public void insertUpdate(DocumentEvent e) {
-				if(allowUpdateObjFromText())updateObjDocumentFromText();
+				textVersion++;
+				if(allowUpdateObjFromText())updateObjDocumentFromText(e);
 			}
 
 			@Override
 			public void removeUpdate(DocumentEvent e) {
-				if(allowUpdateObjFromText())updateObjDocumentFromText();
+				textVersion++;
+				if(allowUpdateObjFromText())updateObjDocumentFromText(e);
 			}
 
 			@Override
 			public void changedUpdate(DocumentEvent e) {
-				if(allowUpdateObjFromText())updateObjDocumentFromText();
+				textVersion++;
+				if(allowUpdateObjFromText())updateObjDocumentFromText(e);
 			}
 			
 		});
@@ -155,7 +214,7 @@ public class Main {
 
 			@Override
 			public void caretUpdate(CaretEvent e) {
-				if(allowUpdateObjFromText())updateObjSelectionFromText();
+				if(allowUpdateObjFromText())sync.request(SyncScheduler.SELECTION);
 			}
 		
 		});
@@ -186,6 +245,7 @@ public class Main {
 
 			@Override
 			public void mousePressed(MouseEvent e) {
+				finishParse();
 				graphicEditor.mouseDown = e.getButton();
 				graphicEditor.mouseDragged = false;
 				graphicEditor.originMousex = graphicEditor.lastMousex = e.getX();
@@ -251,6 +311,7 @@ public class Main {
 
 			@Override
 			public void keyPressed(KeyEvent e) {
+				finishParse();
 				graphicEditor.command.keyPressed(e);
 			}
 
@@ -262,17 +323,82 @@ public class Main {
 		});
 	}
 	
-	public static void parseTextTo(String source,ArrayList<FCDocumentLine> target,String format){
+	/**
+	 * Parse text into document lines, appending them to the target.
+	 * There is exactly one entry per line of text, same as the lines
+	 * of the text document, including a trailing empty line.
+	 * 
+	 * @param source text to parse
+	 * @param target list to append to
+	 * @param format string to indicate the format used
+	 */
+	public static void parseTextTo(CharSequence source,ArrayList<FCDocumentLine> target,String format){
 		if(source==null)return;
-		int lineCounter = 0;
-		for(String line:source.split("\n")){
-			try{
-				target.add(new FCObj(line,format,lineCounter));
-			}catch(Exception e){
-				target.add(new CommentLine(line,lineCounter));
-			}
+		parseTextTo(source,0,source.length(),0,target,format);
+	}
+	
+	/**
+	 * Parse a range of text into document lines, appending them to the target.
+	 * 
+	 * @see #parseTextTo(CharSequence, ArrayList, String)
+	 * 
+	 * @param source text containing the lines
+	 * @param start index of the first character of the first line
+	 * @param end index after the last character of the last line
+	 * @param firstLine line number to give the first line
+	 * @param target list to append to
+	 * @param format string to indicate the format used
+	 */
+	public static void parseTextTo(CharSequence source,int start,int end,int firstLine,ArrayList<FCDocumentLine> target,String format){
+		if(end-start>=PARALLEL_PARSE_THRESHOLD&&ForkJoinPool.getCommonPoolParallelism()>1){
+			parseTextToParallel(source,start,end,firstLine,target,format);
+		}else{
+			parseTextToSerial(source,start,end,firstLine,target,format);
+		}
+	}
+	
+	/**
+	 * Parse a range of text into document lines on the current thread.
+	 * 
+	 * @see #parseTextTo(CharSequence, int, int, int, ArrayList, String)
+	 * 
+	 * @param source text containing the lines
+	 * @param start index of the first character of the first line
+	 * @param end index after the last character of the last line
+	 * @param firstLine line number to give the first line
+	 * @param target list to append to
+	 * @param format string to indicate the format used
+	 */
+	public static void parseTextToSerial(CharSequence source,int start,int end,int firstLine,ArrayList<FCDocumentLine> target,String format){
+		int lineCounter = firstLine;
+		for(int lineStart = start;;){
+			int lineEnd = lineStart;
+			while(lineEnd<end&&source.charAt(lineEnd)!='\n')lineEnd++;
+			target.add(FCObj.tryParse(source,lineStart,lineEnd,format,lineCounter));
 			lineCounter++;
+			if(lineEnd==end)break;
+			lineStart = lineEnd+1;
+		}
+	}
+	
+	/**
+	 * Load a level file, replacing the current document.
+	 * The file is streamed straight into the object document,
+	 * and the text view is filled in from that afterwards.
+	 * 
+	 * @param path file to load
+	 * @throws IOException if the file could not be read
+	 */
+	public static void loadFile(Path path) throws IOException{
+		ArrayList<FCDocumentLine> loaded = new ArrayList<>();
+		try(FCMLReader reader = FCMLReader.open(path,"fcml")){
+			reader.readAllTo(loaded);
 		}
+		setObjDoc(FCDocument.of(loaded));
+		objSel.clear();
+		graphicEditor.setBackupSel();
+		markObjDocDirty();
+		updateTextDocumentFromObj();
 	}
 	
 	public static void updateObjFromText(){
@@ -280,57 +406,295 @@ public class Main {
 		updateObjSelectionFromText();
 	}
 	
+	/**
+	 * Reparse the whole text into the object document.
+	 * Large texts, or any text while a background parse is still
+	 * outstanding, are parsed in the background and applied later.
+	 */
 	public static void updateObjDocumentFromText(){
 		String text = textEditor.getText();
-		objDoc.clear();
-		parseTextTo(text,objDoc,"fcml");
-		ticker++;
-		graphicEditor.repaint();
+		if(parseWorker.isBusy()||text.length()>=BACKGROUND_PARSE_THRESHOLD){
+			parseWorker.submitWhole(textVersion,text);
+			return;
+		}
+		ArrayList<FCDocumentLine> lines = new ArrayList<>();
+		parseTextTo(text,lines,"fcml");
+		FCDocument.keepIds(objDoc, lines);
+		setObjDoc(FCDocument.of(lines));
+		clearObjDirty();
+		sync.request(SyncScheduler.REPAINT_GRAPHIC);
+	}
+	
+	/**
+	 * Replace the object document everywhere it is used
+	 * 
+	 * @param doc the new document
+	 */
+	public static void setObjDoc(FCDocument doc){
+		objDoc = doc;
+		graphicEditor.objDoc = doc;
+	}
+	
+	/**
+	 * Reparse only the lines touched by a text edit and splice them
+	 * into the object document, so the cost depends on the size of the
+	 * edit and not the size of the document.
+	 * Falls back to a full reparse if the object document was out of sync.
+	 * Large edits are parsed in the background and applied later.
+	 * 
+	 * <br>
+	 * The reparse itself is left to {@link #sync}, so all edits
+	 * from one event are parsed together.
+	 * 
+	 * @param e the edit that just happened to {@link #textDoc}
+	 */
+	public static void updateObjDocumentFromText(DocumentEvent e){
+		if(parseWorker.isBusy()){
+			// the object document is already behind, so coalesce into one full reparse
+			sync.requestWhole();
+			return;
+		}
+		Element root = textDoc.getDefaultRootElement();
+		DocumentEvent.ElementChange change = e.getChange(root);
+		int first, removed, added;
+		if(change==null){
+			// edit within a single line
+			first = root.getElementIndex(e.getOffset());
+			removed = added = 1;
+		}else{
+			first = change.getIndex();
+			removed = change.getChildrenRemoved().length;
+			added = change.getChildrenAdded().length;
+		}
+		sync.requestLines(first,removed,added);
+	}
+	
+	/**
+	 * Reparse lines of the text which replace lines of the object document
+	 * 
+	 * @param first index of the first changed line
+	 * @param removed number of lines of the object document to replace
+	 * @param added number of lines of the text which replace them
+	 */
+	public static void updateObjDocumentFromLines(int first,int removed,int added){
+		if(parseWorker.isBusy()){
+			updateObjDocumentFromText();
+			return;
+		}
+		Element root = textDoc.getDefaultRootElement();
+		if(objDoc.size()-removed+added!=root.getElementCount()){
+			updateObjDocumentFromText();
+			return;
+		}
+		// parse the new lines
+		int textStart = root.getElement(first).getStartOffset();
+		int textEnd = root.getElement(first+added-1).getEndOffset()-1;
+		Segment segment = new Segment();
+		try{
+			textDoc.getText(textStart, textEnd-textStart, segment);
+		}catch(BadLocationException ex){
+			updateObjDocumentFromText();
+			return;
+		}
+		if(segment.length()>=BACKGROUND_PARSE_THRESHOLD){
+			parseWorker.submitLines(textVersion,segment.toString(),first,removed);
+			return;
+		}
+		ArrayList<FCDocumentLine> lines = new ArrayList<>(added);
+		parseTextTo(segment,0,segment.length(),first,lines,"fcml");
+		spliceLines(first,removed,lines);
+		sync.request(SyncScheduler.REPAINT_GRAPHIC);
+	}
+	
+	/**
+	 * Replace lines of the object document with newly parsed ones,
+	 * lines which did not change keep their ids
+	 * <br>
+	 * Lines after them are not renumbered, they are shared with
+	 * older documents and their position in the tree is their line number.
+	 * 
+	 * @param first line number of the first line to replace
+	 * @param removed number of lines to replace
+	 * @param lines the new lines, already numbered from first
+	 */
+	public static void spliceLines(int first,int removed,List<FCDocumentLine> lines){
+		FCDocument.keepIds(objDoc.range(first, first+removed), lines);
+		FCDocument before = objDoc;
+		setObjDoc(objDoc.splice(first, first+removed, lines));
+		graphicEditor.spliceObjStore(before, first, removed, lines.size());
+		clearObjDirty();
+	}
+	
+	/**
+	 * Apply a result from {@link #parseWorker} to the object document,
+	 * unless the text has changed since it was submitted
+	 * 
+	 * @param result the result, may be null
+	 */
+	public static void applyParseResult(ParseWorker.Result result){
+		if(result==null||result.version!=textVersion)return;
+		if(result.isWhole()){
+			FCDocument.keepIds(objDoc, result.lines);
+			setObjDoc(result.lines);
+			clearObjDirty();
+		}else{
+			spliceLines(result.first,result.removed,result.lines);
+		}
+		if(result.store!=null)graphicEditor.setObjStore(result.store);
+		// selection from text may have been computed against old lines
+		if(allowUpdateObjFromText())sync.request(SyncScheduler.SELECTION);
+		sync.request(SyncScheduler.REPAINT_GRAPHIC);
+	}
+	
+	/**
+	 * Wait for the background parse to finish and apply it,
+	 * so the object document matches the text before
+	 * anything edits the object document
+	 */
+	public static void finishParse(){
+		sync.flush();
+		if(parseWorker.isBusy()){
+			applyParseResult(parseWorker.awaitResult());
+			sync.flush();
+		}
+	}
+	
+	/**
+	 * Parse a range of text into document lines using the common fork-join pool.
+	 * The text is cut into line-aligned chunks which are parsed independently,
+	 * then concatenated in order and renumbered.
+	 * The result is identical to {@link #parseTextToSerial(CharSequence, int, int, int, ArrayList, String)}.
+	 * <br>
+	 * The source must not be modified until this returns.
+	 * 
+	 * @see #parseTextTo(CharSequence, int, int, int, ArrayList, String)
+	 * 
+	 * @param source text containing the lines
+	 * @param start index of the first character of the first line
+	 * @param end index after the last character of the last line
+	 * @param firstLine line number to give the first line
+	 * @param target list to append to
+	 * @param format string to indicate the format used
+	 */
+	public static void parseTextToParallel(CharSequence source,int start,int end,int firstLine,ArrayList<FCDocumentLine> target,String format){
+		// chunk i is [bounds[i], bounds[i+1]-1), so every chunk but the last ends just before a newline
+		int maxChunks = Math.max(1, (end-start)/PARALLEL_PARSE_CHUNK);
+		int[] bounds = new int[maxChunks+1];
+		bounds[0] = start;
+		int nchunks = 1;
+		for(int i=1;i<maxChunks;i++){
+			int cut = Math.max(bounds[nchunks-1], start+(int)((long)(end-start)*i/maxChunks));
+			while(cut<end&&source.charAt(cut)!='\n')cut++;
+			if(cut>=end)break;
+			bounds[nchunks++] = cut+1;
+		}
+		bounds[nchunks] = end+1;
+		@SuppressWarnings({"unchecked","rawtypes"})
+		ArrayList<FCDocumentLine>[] parts = new ArrayList[nchunks];
+		ForkJoinPool.commonPool().invoke(new ParseChunksTask(source,bounds,0,nchunks,parts,format));
+		// concatenate and renumber
+		int size = 0;
+		for(ArrayList<FCDocumentLine> part:parts)size += part.size();
+		target.ensureCapacity(target.size()+size);
+		int lineCounter = firstLine;
+		for(ArrayList<FCDocumentLine> part:parts){
+			for(FCDocumentLine line:part){
+				line.setLineNumber(lineCounter, 0);
+				target.add(line);
+				lineCounter++;
+			}
+		}
+	}
+	
+	/**
+	 * Fork-join task which parses a range of chunks for
+	 * {@link Main#parseTextToParallel(CharSequence, int, int, int, ArrayList, String)},
+	 * splitting in half until there is a single chunk
+	 * 
+	 * @author komiamiko
+	 * @version 1.0
+	 */
+	static class ParseChunksTask extends RecursiveAction {
+		private static final long serialVersionUID = 3542175432318427317L;
+		
+		final CharSequence source;
+		final int[] bounds;
+		final int lo, hi;
+		final ArrayList<FCDocumentLine>[] parts;
+		final String format;
+		
+		ParseChunksTask(CharSequence source,int[] bounds,int lo,int hi,ArrayList<FCDocumentLine>[] parts,String format){
+			this.source = source;
+			this.bounds = bounds;
+			this.lo = lo;
+			this.hi = hi;
+			this.parts = parts;
+			this.format = format;
+		}
+
+		@Override
+		protected void compute() {
+			if(hi-lo==1){
+				ArrayList<FCDocumentLine> part = new ArrayList<>();
+				parseTextToSerial(source,bounds[lo],bounds[hi]-1,0,part,format);
+				parts[lo] = part;
+			}else{
+				int mid = (lo+hi)>>>1;
+				invokeAll(new ParseChunksTask(source,bounds,lo,mid,parts,format),
+						new ParseChunksTask(source,bounds,mid,hi,parts,format));
+			}
+		}
+		
 	}
 	
+	/**
+	 * Select the objects on the lines covered by the text selection
+	 * <br>
+	 * Lines are found through the line elements of {@link #textDoc},
+	 * which keep their own offsets, so this only reads the selected text
+	 * and never copies or scans the whole document.
+	 */
 	public static void updateObjSelectionFromText(){
 		int tsStart = textEditor.getSelectionStart();
 		int tsStop = textEditor.getSelectionEnd();
 		objSel.clear();
 		// empty case
 		if(tsStart < tsStop) {
-			String text = textEditor.getText();
-			int docLength = text.length();
+			Segment text = new Segment();
+			try {
+				textDoc.getText(tsStart, tsStop - tsStart, text);
+			} catch (BadLocationException e) {
+				tsStop = tsStart;
+			}
 			// skip over whitespace, including empty lines
-			while(tsStart < tsStop && text.charAt(tsStart) <= ' ') {
-				tsStart++;
+			int skipStart = 0, skipStop = text.count;
+			while(skipStart < skipStop && text.array[text.offset + skipStart] <= ' ') {
+				skipStart++;
 			}
-			while(tsStart < tsStop && text.charAt(tsStop - 1) <= ' ') {
-				tsStop--;
+			while(skipStart < skipStop && text.array[text.offset + skipStop - 1] <= ' ') {
+				skipStop--;
 			}
+			tsStop = tsStart + skipStop;
+			tsStart += skipStart;
 			// stop early if selection is empty
 			if(tsStart < tsStop) {
-				// count newlines in range
-				int nlLeft = 0, nlMid = 0;
-				for(int i = 0; i < tsStart; ++i) {
-					if(text.charAt(i) == '\n') {
-						nlLeft++;
-					}
-				}
-				for(int i = tsStart; i < tsStop; ++i) {
-					if(text.charAt(i) == '\n') {
-						nlMid++;
-					}
-				}
 				// determine start/stop of the selection
-				int selStart = nlLeft;
-				int selStop = nlLeft + nlMid + 1;
+				Element root = textDoc.getDefaultRootElement();
+				int selStart = root.getElementIndex(tsStart);
+				// the object document may still be behind the text
+				int selStop = Math.min(root.getElementIndex(tsStop) + 1, objDoc.size());
 				// set selection only for fc object lines
-				for(int i = selStart; i < selStop; ++i) {
-					if(objDoc.get(i) instanceof FCObj) {
-						objSel.set(i);
+				if(selStart < selStop) {
+					for(FCDocumentLine line:objDoc.range(selStart, selStop)) {
+						if(line instanceof FCObj) {
+							objSel.add(line);
+						}
 					}
 				}
 			}
 		}
-		ticker++;
 		graphicEditor.setBackupSel();
-		graphicEditor.repaint();
+		sync.request(SyncScheduler.REPAINT_GRAPHIC);
 	}
 	
 	public static void updateTextFromObj(){
@@ -340,63 +704,241 @@ public class Main {
 		textUndo.induceGap();
 	}
 	
+	/**
+	 * Bring the text up to date with the object document
+	 * <br>
+	 * If only some lines are dirty, see {@link #markObjLinesDirty(BitSet)},
+	 * only those lines of the text are replaced, found through the line elements
+	 * of {@link #textDoc}, so the cost does not depend on the document size.
+	 * Otherwise the whole text is rebuilt.
+	 */
 	public static void updateTextDocumentFromObj(){
-		fixLineNumbers(objDoc);
+		// however many lines are written, it is one undoable edit
+		textUndo.beginCompound();
+		try{
+			if(canUpdateTextLines()){
+				Element root = textDoc.getDefaultRootElement();
+				try{
+					for(int i = dirtyLines.nextSetBit(0); i >= 0; i = dirtyLines.nextSetBit(i+1)) {
+						replaceTextLine(root, i, objDoc.get(i).toString());
+					}
+					dirtyLines.clear();
+					sync.request(SyncScheduler.REPAINT_TEXT);
+					return;
+				}catch(BadLocationException ex){
+					// fall through to rebuild the whole text
+				}
+			}
+			rebuildTextFromObj();
+		}finally{
+			textUndo.endCompound();
+		}
+	}
+	
+	/**
+	 * Rebuild the whole text from the object document
+	 */
+	private static void rebuildTextFromObj(){
+		dirtyLines.clear();
+		objDocDirty = false;
 		StringBuilder sb = new StringBuilder();
+		boolean firstLine = true;
 		for(FCDocumentLine obj:objDoc){
-			sb.append(obj.toString());
-			sb.append('\n');
+			if(!firstLine)sb.append('\n');
+			firstLine = false;
+			obj.appendTo(sb);
 		}
 		textEditor.setText(sb.toString());
-		ticker++;
-		textEditor.repaint();
+		sync.request(SyncScheduler.REPAINT_TEXT);
+	}
+	
+	/**
+	 * Mark lines of the object document whose objects changed,
+	 * but which were not inserted or removed, so the next
+	 * {@link #updateTextDocumentFromObj()} only rewrites those lines
+	 * 
+	 * @param lines line numbers
+	 */
+	public static void markObjLinesDirty(BitSet lines){
+		dirtyLines.or(lines);
+	}
+	
+	/**
+	 * Forget that some lines are dirty, because their objects
+	 * went back to what the text already says
+	 * 
+	 * @param lines line numbers
+	 */
+	public static void unmarkObjLinesDirty(BitSet lines){
+		dirtyLines.andNot(lines);
+	}
+	
+	/**
+	 * Find which of some lines are not dirty
+	 * 
+	 * @param lines line numbers
+	 * @return a new set of the lines which are not dirty
+	 */
+	public static BitSet cleanObjLines(BitSet lines){
+		BitSet clean = (BitSet)lines.clone();
+		clean.andNot(dirtyLines);
+		return clean;
+	}
+	
+	/**
+	 * Mark the whole object document as out of sync with the text,
+	 * for changes which inserted or removed lines
+	 */
+	public static void markObjDocDirty(){
+		objDocDirty = true;
+	}
+	
+	/**
+	 * Forget which lines are dirty, because the object document
+	 * was just made from the text
+	 */
+	private static void clearObjDirty(){
+		dirtyLines.clear();
+		objDocDirty = false;
+	}
+	
+	/**
+	 * Can the text be brought up to date one line at a time?
+	 * This needs the text and the object document to still line up.
+	 * 
+	 * @return true if only the dirty lines need replacing
+	 */
+	private static boolean canUpdateTextLines(){
+		return !objDocDirty
+				&& !parseWorker.isBusy()
+				&& textDoc.getDefaultRootElement().getElementCount() == objDoc.size();
+	}
+	
+	/**
+	 * Replace the text of one line, unless it is already the same
+	 * 
+	 * @param root root element of {@link #textDoc}
+	 * @param line line number
+	 * @param text new text of the line, without the line break
+	 * @throws BadLocationException if the line does not exist
+	 */
+	private static void replaceTextLine(Element root,int line,String text) throws BadLocationException{
+		Element element = root.getElement(line);
+		int start = element.getStartOffset();
+		int length = element.getEndOffset()-1-start;
+		if(length==text.length()&&textDoc.getText(start, length).equals(text))return;
+		textDoc.remove(start, length);
+		textDoc.insertString(start, text, null);
+	}
+	
+	/**
+	 * Remove lines from the object document and the same lines from the text,
+	 * touching only those lines of the text where possible
+	 * 
+	 * @param lines line numbers to remove
+	 */
+	public static void removeObjLines(BitSet lines){
+		if(lines.isEmpty())return;
+		textUndo.induceGap();
+		// however many lines are removed, it is one undoable edit
+		textUndo.beginCompound();
+		try{
+			removeObjLinesInText(lines);
+		}finally{
+			textUndo.endCompound();
+		}
+		textUndo.induceGap();
+	}
+	
+	/**
+	 * Body of {@link #removeObjLines(BitSet)}, while its edits are being collected
+	 */
+	private static void removeObjLinesInText(BitSet lines){
+		// write out any pending changes first, so the dirty lines need no shifting
+		updateTextDocumentFromObj();
+		boolean inText = canUpdateTextLines();
+		Element root = textDoc.getDefaultRootElement();
+		FCDocument doc = objDoc;
+		try{
+			for(int i = lines.length(); (i = lines.previousSetBit(i-1)) >= 0;) {
+				doc = doc.without(i, i+1);
+				if(inText){
+					Element element = root.getElement(i);
+					int start = element.getStartOffset();
+					int end = element.getEndOffset();
+					if(end<=textDoc.getLength()){
+						// remove the line with its line break
+						textDoc.remove(start, end-start);
+					}else if(start>0){
+						// last line, remove the line break before it instead
+						textDoc.remove(start-1, end-start);
+					}else{
+						textDoc.remove(0, textDoc.getLength());
+					}
+				}
+			}
+		}catch(BadLocationException ex){
+			inText = false;
+		}
+		if(doc.isEmpty()){
+			// the text always has at least one line
+			ArrayList<FCDocumentLine> empty = new ArrayList<>(1);
+			parseTextTo("",empty,"fcml");
+			doc = FCDocument.of(empty);
+		}
+		setObjDoc(doc);
+		if(!inText){
+			markObjDocDirty();
+			updateTextDocumentFromObj();
+		}
+		sync.request(SyncScheduler.REPAINT_TEXT);
 	}
 	
 	public static void updateTextSelectionFromObj(){
 		graphicEditor.setBackupSel();
-		int sn = objSel.cardinality();
+		BitSet selLines = graphicEditor.getSelectedLines();
+		int sn = selLines.cardinality();
 		// check not empty
 		if(sn>0){
 			// check contiguous
 			// if they are contiguous, it will look like
 			// 0 ... 0 1 ... 1 0 ... 0
 			// so the first 0 after the first 1 should be just after the last 1
-			final int firstSet = objSel.nextSetBit(0);
-			final int lastSet = objSel.previousSetBit(objSel.length());
-			final int nextClear = objSel.nextClearBit(firstSet);
+			final int firstSet = selLines.nextSetBit(0);
+			final int lastSet = selLines.previousSetBit(selLines.length());
+			final int nextClear = selLines.nextClearBit(firstSet);
 			if(nextClear == lastSet + 1) {
 				final int selStart = firstSet;
 				final int selStop = nextClear;
-				// calculate positions in text
-				int tsStart = selStart;
-				String[] lines = textEditor.getText().split("\n");
-				for(int i = 0; i < selStart; ++i) {
-					tsStart += lines[i].length();
-				}
-				int tsStop = tsStart + selStop - selStart - 1;
-				for(int i = selStart; i < selStop; ++i) {
-					tsStop += lines[i].length();
+				// calculate positions in text from the line elements
+				Element root = textDoc.getDefaultRootElement();
+				if(selStop <= root.getElementCount()) {
+					int tsStart = root.getElement(selStart).getStartOffset();
+					// end of the last line, before its line break
+					int tsStop = root.getElement(selStop - 1).getEndOffset() - 1;
+					// temporarily set start to 0 to prevent bounds issues
+					textEditor.setSelectionStart(0);
+					// set stop
+					textEditor.setSelectionEnd(tsStop);
+					// set start
+					textEditor.setSelectionStart(tsStart);
 				}
-				// temporarily set start to 0 to prevent bounds issues
-				textEditor.setSelectionStart(0);
-				// set stop
-				textEditor.setSelectionEnd(tsStop);
-				// set start
-				textEditor.setSelectionStart(tsStart);
 			}
 		}
-		ticker++;
-		textEditor.repaint();
+		sync.request(SyncScheduler.REPAINT_TEXT);
 	}
 	
 	/**
 	 * Normalize line numbers in-place
+	 * <br>
+	 * Only for lines which are not in any {@link FCDocument},
+	 * since those may be shared with older documents.
 	 * 
 	 * @see FCDocumentLine#getLineNumber()
 	 * 
 	 * @param target document as list of lines
 	 */
-	public static void fixLineNumbers(ArrayList<FCDocumentLine> target) {
+	public static void fixLineNumbers(List<FCDocumentLine> target) {
 		int lineCounter = 0;
 		for(FCDocumentLine line:target) {
 			line.setLineNumber(lineCounter, 0);
@@ -410,25 +952,61 @@ public class Main {
 	 * <li>Delete all objects in the original selection</li>
 	 * <li>Insert all new objects at the end</li>
 	 * <li>Sort by line/subline, which fixes the ordering</li>
-	 * <li>Normalize the line numbers using {@link #fixLineNumbers(ArrayList)}</li>
+	 * <li>Normalize the line numbers, as {@link #fixLineNumbers(List)} does</li>
 	 * </ol>
+	 * The line number of a kept line is its index in the list.
 	 * Note that any selected and unchanged objects need to be explicitly re-included.
+	 * <br>
+	 * This is done as one pass which skips deleted lines, merges in the
+	 * new objects and renumbers lines as they are emitted,
+	 * so it takes O(n + k log k) for k new objects.
+	 * Since the lines are renumbered, they must not be in any {@link FCDocument}.
 	 * 
 	 * @param target document to modify
 	 * @param selection object selection
 	 * @param toAdd new objects to add
 	 */
-	public static void applyObjDocumentChange(ArrayList<FCDocumentLine> target, BitSet selection, ArrayList<FCDocumentLine> toAdd) {
-		// delete original selected objects
-		for(int i = selection.length(); (i = selection.previousSetBit(i-1)) >= 0;) {
-			target.remove(i);
+	public static void applyObjDocumentChange(ArrayList<FCDocumentLine> target, BitSet selection, List<FCDocumentLine> toAdd) {
+		ArrayList<FCDocumentLine> result = new ArrayList<>(target.size()+toAdd.size());
+		// kept lines are in order of their index, so only the new objects need sorting,
+		// this is stable like sorting everything would be
+		ArrayList<FCDocumentLine> added = new ArrayList<>(toAdd);
+		added.sort(FCDocumentLine.COMPARE_LINE_NUMBER);
+		int addIndex = 0, addCount = added.size();
+		int index = 0;
+		// skip deleted lines, merge in new ones and renumber, all in one pass
+		for(FCDocumentLine line:target) {
+			if(!selection.get(index)) {
+				// on ties, kept lines go before new ones
+				while(addIndex < addCount && isBefore(added.get(addIndex), index)) {
+					FCDocumentLine add = added.get(addIndex++);
+					add.setLineNumber(result.size(), 0);
+					result.add(add);
+				}
+				line.setLineNumber(result.size(), 0);
+				result.add(line);
+			}
+			index++;
+		}
+		while(addIndex < addCount) {
+			FCDocumentLine add = added.get(addIndex++);
+			add.setLineNumber(result.size(), 0);
+			result.add(add);
 		}
-		// append new objects
-		target.addAll(toAdd);
-		// sort by line number
-		target.sort(FCDocumentLine.COMPARE_LINE_NUMBER);
-		// normalize line numbers
-		fixLineNumbers(target);
+		target.clear();
+		target.addAll(result);
+	}
+	
+	/**
+	 * Does a new line go before the kept line at some index?
+	 * 
+	 * @param line the new line
+	 * @param index index of the kept line, which has sub-line number 0
+	 * @return true if it goes before
+	 */
+	private static boolean isBefore(FCDocumentLine line, int index) {
+		int c = Integer.compare(line.getLineNumber(), index);
+		return c < 0 || c == 0 && line.getSubLineNumber() < 0;
 	}
 	
 	public static void tryUndo(){
@@ -571,6 +1149,20 @@ public class Main {
 	 */
 	public static void debugReport() {
 		textUndo.debugReport();
+		sync.debugReport();
+		graphicEditor.debugReport();
+		FCObjStore store = graphicEditor.getObjStore();
+		int[] dangling = store.danglingJoints();
+		System.out.println("Object document");
+		System.out.println("* Lines = " + objDoc.size());
+		System.out.println("* Objects = " + store.size);
+		System.out.println("* Joints = " + store.jointStart[store.size]);
+		System.out.println("* Contraptions = " + graphicEditor.getJointGraph().componentCount());
+		System.out.println("* Dangling joints = " + dangling.length);
+		for(int position:dangling) {
+			int row = store.jointOwner(position);
+			System.out.println("    + line " + (store.line[row] + 1) + " joints to missing #" + store.jointData[position]);
+		}
 	}
 
 }
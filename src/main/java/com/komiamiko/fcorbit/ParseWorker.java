@@ -0,0 +1,221 @@
+package com.komiamiko.fcorbit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import com.komiamiko.fcorbit.document.FCDocument;
+import com.komiamiko.fcorbit.document.FCDocumentLine;
+import com.komiamiko.fcorbit.document.FCObjStore;
+
+/**
+ * Parses text on a background thread so large edits do not freeze the editor
+ * <br>
+ * Only one request waits at a time. Submitting while another request
+ * is waiting replaces it, so a burst of edits is parsed once.
+ * Each finished parse is an immutable {@link Result}, which is handed
+ * to the Swing event thread to be applied.
+ * <br>
+ * Results carry the text version they were made from, so whoever
+ * applies them can tell if the text changed since, and drop them.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public class ParseWorker implements Runnable {
+
+	/**
+	 * A finished parse, which is not modified until it is applied
+	 *
+	 * @author komiamiko
+	 * @version 1.0
+	 */
+	public static final class Result {
+		/**
+		 * Text version this was parsed from
+		 */
+		public final long version;
+		/**
+		 * First line that was replaced
+		 */
+		public final int first;
+		/**
+		 * Number of lines that were replaced, or -1 if this replaces the whole document
+		 */
+		public final int removed;
+		/**
+		 * The parsed lines, numbered from {@link #first}
+		 */
+		public final FCDocument lines;
+		/**
+		 * Columns of the parsed lines, only made when this replaces the whole document
+		 */
+		public final FCObjStore store;
+
+		Result(long version,int first,int removed,FCDocument lines,FCObjStore store){
+			this.version = version;
+			this.first = first;
+			this.removed = removed;
+			this.lines = lines;
+			this.store = store;
+		}
+
+		/**
+		 * Does this replace the whole document?
+		 *
+		 * @return true if this is a whole document
+		 */
+		public boolean isWhole(){
+			return removed<0;
+		}
+	}
+
+	/**
+	 * A request waiting to be parsed
+	 */
+	private static final class Request {
+		final long version;
+		final String text;
+		final int first;
+		final int removed;
+
+		Request(long version,String text,int first,int removed){
+			this.version = version;
+			this.text = text;
+			this.first = first;
+			this.removed = removed;
+		}
+	}
+
+	/**
+	 * Called on the Swing event thread after each result is ready
+	 */
+	private final Runnable onResult;
+	/**
+	 * Format to parse with
+	 */
+	private final String format;
+	private Request pending;
+	private Request running;
+	private Result done;
+	private Thread thread;
+
+	/**
+	 * Make a parse worker, the thread is started on first use
+	 *
+	 * @param format string to indicate the format used
+	 * @param onResult called on the Swing event thread when a result is ready,
+	 * it should call {@link #takeResult()}
+	 */
+	public ParseWorker(String format,Runnable onResult){
+		this.format = format;
+		this.onResult = onResult;
+	}
+
+	/**
+	 * Parse a whole text, replacing any request still waiting
+	 *
+	 * @param version text version
+	 * @param text the full text
+	 */
+	public void submitWhole(long version,String text){
+		submit(new Request(version,text,0,-1));
+	}
+
+	/**
+	 * Parse some lines which replace others,
+	 * replacing any request still waiting
+	 *
+	 * @param version text version
+	 * @param text the new lines
+	 * @param first line number of the first new line
+	 * @param removed number of old lines they replace
+	 */
+	public void submitLines(long version,String text,int first,int removed){
+		submit(new Request(version,text,first,removed));
+	}
+
+	private synchronized void submit(Request request){
+		pending = request;
+		if(thread==null){
+			thread = new Thread(this, "FCML parser");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Is there a request which has not yet been taken as a result?
+	 * While this is true, the object document may be behind the text.
+	 *
+	 * @return true if busy
+	 */
+	public synchronized boolean isBusy(){
+		return pending!=null||running!=null||done!=null;
+	}
+
+	/**
+	 * Take the latest finished result, if any
+	 *
+	 * @return the result, or null if there is none
+	 */
+	public synchronized Result takeResult(){
+		Result result = done;
+		done = null;
+		return result;
+	}
+
+	/**
+	 * Block until every request has been parsed, then take the result
+	 *
+	 * @return the result, or null if there is none
+	 */
+	public synchronized Result awaitResult(){
+		boolean interrupted = false;
+		while(pending!=null||running!=null){
+			try{
+				wait();
+			}catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		if(interrupted)Thread.currentThread().interrupt();
+		return takeResult();
+	}
+
+	@Override
+	public void run(){
+		while(true){
+			Request request;
+			synchronized(this){
+				while(pending==null){
+					try{
+						wait();
+					}catch(InterruptedException e){
+						return;
+					}
+				}
+				request = running = pending;
+				pending = null;
+			}
+			ArrayList<FCDocumentLine> lines = new ArrayList<>();
+			Main.parseTextTo(request.text,0,request.text.length(),request.first,lines,format);
+			FCDocument doc = FCDocument.of(lines);
+			FCObjStore store = null;
+			if(request.removed<0){
+				store = new FCObjStore();
+				store.rebuild(doc);
+			}
+			Result result = new Result(request.version,request.first,request.removed,doc,store);
+			synchronized(this){
+				running = null;
+				done = result;
+				notifyAll();
+			}
+			SwingUtilities.invokeLater(onResult);
+		}
+	}
+
+}
@@ -1,46 +1,151 @@
 package com.komiamiko.fcorbit;
 
+import java.awt.AlphaComposite;
+import java.awt.Composite;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 
+/**
+ * A stack of same sized images drawn over each other in order
+ * <br>
+ * The images are kept between frames and only made again when the size
+ * or the screen changes, otherwise they are cleared in place,
+ * so painting does not make new full window images every time.
+ * Images use premultiplied alpha, and are made compatible with the
+ * screen where that allows it, so drawing them is a plain blit where possible.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
 public class RenderLayer {
-	
-	public final int n,w,h;
+
+	public final int n;
+	public int w,h;
 	public final BufferedImage[] images;
 	public final Graphics2D[] graphics;
-	
-	public RenderLayer(int n,int w,int h){
+	/**
+	 * Screen the images were made for, may be null
+	 */
+	private GraphicsConfiguration config;
+	/**
+	 * Number of times the images were made, for reports
+	 */
+	public int allocations;
+
+	/**
+	 * Make a layer with no images yet, call {@link #prepare(GraphicsConfiguration, int, int)}
+	 * before drawing
+	 *
+	 * @param n number of images
+	 */
+	public RenderLayer(int n){
 		this.n=n;
-		this.w=w;
-		this.h=h;
 		images = new BufferedImage[n];
 		graphics = new Graphics2D[n];
+	}
+
+	public RenderLayer(int n,int w,int h){
+		this(n);
+		prepare(null,w,h);
+	}
+
+	/**
+	 * Get ready to draw a new frame: make the images again if the size
+	 * or screen changed, otherwise clear them,
+	 * and reset the transforms to identity
+	 *
+	 * @param config screen to make compatible images for, or null
+	 * @param w width
+	 * @param h height
+	 */
+	public void prepare(GraphicsConfiguration config,int w,int h){
+		w = Math.max(w, 1);
+		h = Math.max(h, 1);
+		if(images[0]==null||w!=this.w||h!=this.h||config!=this.config){
+			dispose();
+			this.w=w;
+			this.h=h;
+			this.config=config;
+			allocations++;
+			for(int i=0;i<n;i++){
+				BufferedImage img = images[i] = makeImage(config,w,h);
+				Graphics2D g = graphics[i] = img.createGraphics();
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			}
+		}else{
+			clear();
+			AffineTransform identity = new AffineTransform();
+			for(int i=0;i<n;i++){
+				graphics[i].setTransform(identity);
+			}
+		}
+	}
+
+	/**
+	 * Make one image with premultiplied alpha, compatible with the screen
+	 * if the screen's translucent format is premultiplied
+	 * <br>
+	 * Coercing the data of a non-premultiplied image would keep its type,
+	 * and drawing it would still take the slow path.
+	 */
+	private static BufferedImage makeImage(GraphicsConfiguration config,int w,int h){
+		if(config!=null&&config.getColorModel(Transparency.TRANSLUCENT).isAlphaPremultiplied()){
+			return config.createCompatibleImage(w,h,Transparency.TRANSLUCENT);
+		}
+		return new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB_PRE);
+	}
+
+	/**
+	 * Make all images fully transparent, keeping the transforms
+	 */
+	public void clear(){
 		for(int i=0;i<n;i++){
-			BufferedImage img = images[i] = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
-			Graphics2D g = graphics[i] = img.createGraphics();
-			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			Graphics2D g = graphics[i];
+			AffineTransform ot = g.getTransform();
+			Composite oc = g.getComposite();
+			g.setTransform(new AffineTransform());
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(0, 0, w, h);
+			g.setComposite(oc);
+			g.setTransform(ot);
 		}
 	}
-	
+
+	/**
+	 * Release the graphics of the current images
+	 */
+	public void dispose(){
+		for(int i=0;i<n;i++){
+			if(graphics[i]!=null){
+				graphics[i].dispose();
+				graphics[i]=null;
+			}
+			images[i]=null;
+		}
+	}
+
 	public void renderTo(Graphics2D g){
 		for(BufferedImage img:images){
 			g.drawImage(img, 0, 0, null);
 		}
 	}
-	
+
 	public void translate(double x,double y){
 		for(int i=0;i<n;i++){
 			graphics[i].translate(x, y);
 		}
 	}
-	
+
 	public void rotate(double r){
 		for(int i=0;i<n;i++){
 			graphics[i].rotate(r);
 		}
 	}
-	
+
 	public void scale(double x,double y){
 		for(int i=0;i<n;i++){
 			graphics[i].scale(x, y);
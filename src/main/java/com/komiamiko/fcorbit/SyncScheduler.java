@@ -0,0 +1,181 @@
+package com.komiamiko.fcorbit;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Gathers requests to sync the text and graphic editors,
+ * and runs each step at most once per pass of the Swing event queue
+ * <br>
+ * One keystroke fires a document event and a caret event, and a replace
+ * fires two document events, each of which used to do its own reparse,
+ * selection update and repaint. Instead, they only set flags here,
+ * and the work runs once after the current event is done.
+ * <br>
+ * Text edits are merged into a single range of lines, so any number
+ * of edits in one pass are reparsed together.
+ * <br>
+ * Everything here runs on the Swing event thread.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public class SyncScheduler implements Runnable {
+
+	/**
+	 * Step: reparse the changed lines of the text into the object document
+	 */
+	public static final int DOCUMENT = 1;
+	/**
+	 * Step: select objects from the text selection
+	 */
+	public static final int SELECTION = 2;
+	/**
+	 * Step: repaint the graphic editor
+	 */
+	public static final int REPAINT_GRAPHIC = 4;
+	/**
+	 * Step: repaint the text editor
+	 */
+	public static final int REPAINT_TEXT = 8;
+	/**
+	 * Names of the steps, for reports
+	 */
+	private static final String[] STEP_NAMES = {"Document", "Selection", "Repaint graphic", "Repaint text"};
+
+	/**
+	 * Steps waiting to run
+	 */
+	private int pending;
+	/**
+	 * Is a run already queued?
+	 */
+	private boolean posted;
+	/**
+	 * Pending text edit, as old lines
+	 * {@code [first, first+removed)} of the object document
+	 * replaced by lines {@code [first, first+added)} of the text
+	 */
+	private int first, removed, added;
+	/**
+	 * Is the pending text edit the whole document?
+	 */
+	private boolean whole;
+	/**
+	 * Number of times each step was requested
+	 */
+	private final long[] requested = new long[STEP_NAMES.length];
+	/**
+	 * Number of times each step actually ran
+	 */
+	private final long[] ran = new long[STEP_NAMES.length];
+	/**
+	 * Number of runs
+	 */
+	private long runs;
+
+	/**
+	 * Request some steps
+	 *
+	 * @param steps step flags, such as {@link #SELECTION}
+	 */
+	public void request(int steps){
+		for(int i=0;i<STEP_NAMES.length;i++){
+			if(Bits.readBit(steps, i))requested[i]++;
+		}
+		pending |= steps;
+		if(!posted){
+			posted = true;
+			SwingUtilities.invokeLater(this);
+		}
+	}
+
+	/**
+	 * Request a reparse of some lines of the text,
+	 * merged with any edits still waiting
+	 *
+	 * @param first index of the first changed line
+	 * @param removed number of lines of the text before the edit which were replaced
+	 * @param added number of lines of the text after the edit which replace them
+	 */
+	public void requestLines(int first,int removed,int added){
+		if(!whole){
+			if(Bits.readBit(pending, 0)){
+				// the pending range is in text lines, before this edit
+				int start = Math.min(this.first, first);
+				int end = Math.max(this.first+this.added, first+removed);
+				int oldEnd = end-this.added+this.removed;
+				this.first = start;
+				this.removed = oldEnd-start;
+				this.added = end-removed+added-start;
+			}else{
+				this.first = first;
+				this.removed = removed;
+				this.added = added;
+			}
+		}
+		request(DOCUMENT);
+	}
+
+	/**
+	 * Request a reparse of the whole text
+	 */
+	public void requestWhole(){
+		whole = true;
+		request(DOCUMENT);
+	}
+
+	/**
+	 * Run any waiting steps now, instead of waiting for the event queue
+	 */
+	public void flush(){
+		if(pending!=0)run();
+	}
+
+	/**
+	 * Take a step if it is waiting
+	 */
+	private boolean take(int step){
+		if((pending&step)==0)return false;
+		pending &= ~step;
+		ran[Integer.numberOfTrailingZeros(step)]++;
+		return true;
+	}
+
+	@Override
+	public void run(){
+		posted = false;
+		if(pending==0)return;
+		runs++;
+		if(take(DOCUMENT)){
+			boolean whole = this.whole;
+			this.whole = false;
+			if(whole){
+				Main.updateObjDocumentFromText();
+			}else{
+				Main.updateObjDocumentFromLines(first, removed, added);
+			}
+		}
+		if(take(SELECTION)){
+			Main.updateObjSelectionFromText();
+		}
+		Main.ticker++;
+		if(take(REPAINT_GRAPHIC)){
+			Main.graphicEditor.repaint();
+		}
+		if(take(REPAINT_TEXT)){
+			Main.textEditor.repaint();
+		}
+	}
+
+	/**
+	 * Print how much work was saved by merging requests
+	 */
+	public void debugReport(){
+		System.out.println("Sync scheduler");
+		System.out.println("* Runs = " + runs);
+		for(int i=0;i<STEP_NAMES.length;i++){
+			System.out.println("* " + STEP_NAMES[i] + " = " + ran[i] + " of " + requested[i] + " requested, " + (requested[i] - ran[i]) + " saved");
+		}
+	}
+
+}
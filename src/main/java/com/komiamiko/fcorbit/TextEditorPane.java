@@ -1,8 +1,13 @@
 package com.komiamiko.fcorbit;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashMap;
 
 import javax.swing.JTextArea;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.AbstractDocument;
 import javax.swing.text.Document;
 
 /**
@@ -59,31 +64,218 @@ public class TextEditorPane extends JTextArea implements KeyTracker {
 		keys.clear();
 	}
 	
+	/**
+	 * Most edits the line diff in {@link #setText(String)} will look for,
+	 * beyond this it gives up and replaces one big range,
+	 * which keeps the worst case time and memory bounded
+	 */
+	public static final int MAX_DIFF_EDITS = 512;
+	
+	/**
+	 * Replace the text, but only change the lines which differ.
+	 * <br>
+	 * Lines are compared with a line based diff, so changes in several
+	 * far apart places become several small replacements
+	 * instead of one which covers everything between them.
+	 * The replacements are grouped into one compound edit by every
+	 * {@link TimedUndoManagerV2} listening to the document, so they are undone
+	 * together however many there are, whoever calls this.
+	 * <br>
+	 * Shared lines at the start and end are skipped in linear time first,
+	 * which is all that is needed for the common case of a single change.
+	 */
 	@Override
 	public void setText(String newText) {
 		// short circuit on null or empty
-		final int newLength;
-		if (newText == null || (newLength = newText.length()) == 0) {
+		if (newText == null || newText.length() == 0) {
 			super.setText(newText);
 			return;
 		}
 		String oldText = this.getText();
-		final int oldLength = oldText.length();
-		// compute longest shared prefix
+		int[] oldStarts = lineStarts(oldText);
+		int[] newStarts = lineStarts(newText);
+		final int oldLines = oldStarts.length - 1, newLines = newStarts.length - 1;
+		// skip shared lines at the start and end
+		int head = 0;
+		while(head < oldLines && head < newLines
+				&& sameLine(oldText, oldStarts, head, newText, newStarts, head)) {
+			head++;
+		}
+		int tail = 0;
+		while(tail < oldLines - head && tail < newLines - head
+				&& sameLine(oldText, oldStarts, oldLines - 1 - tail, newText, newStarts, newLines - 1 - tail)) {
+			tail++;
+		}
+		int[] hunks = null;
+		if(oldLines - head - tail > 1 && newLines - head - tail > 1) {
+			hunks = diffLines(oldText, oldStarts, head, oldLines - tail, newText, newStarts, head, newLines - tail);
+		}
+		if(hunks == null) {
+			// single change
+			hunks = new int[] {head, oldLines - tail, head, newLines - tail};
+		}
+		ArrayList<TimedUndoManagerV2> managers = undoManagers();
+		for(TimedUndoManagerV2 manager:managers) {
+			manager.beginCompound();
+		}
+		try {
+			// replace from the end, so earlier offsets stay valid
+			for(int i = hunks.length - 4; i >= 0; i -= 4) {
+				replaceLines(oldText, oldStarts[hunks[i]], oldStarts[hunks[i+1]],
+						newText, newStarts[hunks[i+2]], newStarts[hunks[i+3]]);
+			}
+		} finally {
+			for(TimedUndoManagerV2 manager:managers) {
+				manager.endCompound();
+			}
+		}
+	}
+	
+	/**
+	 * Find the undo managers listening to the document which can group edits
+	 * 
+	 * @return the undo managers, may be empty
+	 */
+	private ArrayList<TimedUndoManagerV2> undoManagers() {
+		ArrayList<TimedUndoManagerV2> result = new ArrayList<>();
+		Document doc = getDocument();
+		if(doc instanceof AbstractDocument) {
+			for(UndoableEditListener listener:((AbstractDocument)doc).getUndoableEditListeners()) {
+				if(listener instanceof TimedUndoManagerV2) {
+					result.add((TimedUndoManagerV2)listener);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Replace one range of the old text with one range of the new text,
+	 * leaving out any characters they share at the start and end
+	 */
+	private void replaceLines(String oldText, int oldStart, int oldStop, String newText, int newStart, int newStop) {
+		int lim = Math.min(oldStop - oldStart, newStop - newStart);
 		int prefix = 0;
-		int lim = Math.min(oldLength, newLength);
-		for(;prefix < lim && oldText.charAt(prefix)
-				== newText.charAt(prefix);++prefix);
-		// compute longest shared suffix
+		for(;prefix < lim && oldText.charAt(oldStart + prefix)
+				== newText.charAt(newStart + prefix);++prefix);
 		lim -= prefix;
 		int suffix = 0;
-		for(;suffix < lim && oldText.charAt(oldLength - 1 - suffix)
-				== newText.charAt(newLength - 1 - suffix);++suffix);
-		// replace the text inbetween
-		final int oldStart = prefix, oldStop = oldLength - suffix,
-				newStart = prefix, newStop = newLength - suffix;
-		String newSlice = newText.substring(newStart, newStop);
-		this.replaceRange(newSlice, oldStart, oldStop);
+		for(;suffix < lim && oldText.charAt(oldStop - 1 - suffix)
+				== newText.charAt(newStop - 1 - suffix);++suffix);
+		if(oldStop - oldStart == prefix + suffix && newStop - newStart == prefix + suffix) {
+			return;
+		}
+		this.replaceRange(newText.substring(newStart + prefix, newStop - suffix),
+				oldStart + prefix, oldStop - suffix);
+	}
+	
+	/**
+	 * Find where each line starts, lines include their line break
+	 * 
+	 * @param text the text
+	 * @return start of each line, then the length of the text
+	 */
+	private static int[] lineStarts(String text) {
+		int count = 1;
+		for(int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+			count++;
+		}
+		int[] starts = new int[count + 1];
+		int line = 1;
+		for(int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+			starts[line++] = i + 1;
+		}
+		starts[count] = text.length();
+		return starts;
+	}
+	
+	private static boolean sameLine(String a, int[] aStarts, int aLine, String b, int[] bStarts, int bLine) {
+		int length = aStarts[aLine + 1] - aStarts[aLine];
+		return length == bStarts[bLine + 1] - bStarts[bLine]
+				&& a.regionMatches(aStarts[aLine], b, bStarts[bLine], length);
+	}
+	
+	/**
+	 * Line based diff of a range of lines, with Myers' algorithm
+	 * 
+	 * @return changed ranges as 4 ints each, old start, old stop, new start, new stop,
+	 * in order, or null if there would be more than {@link #MAX_DIFF_EDITS} edits
+	 */
+	private static int[] diffLines(String oldText, int[] oldStarts, int oldFrom, int oldTo,
+			String newText, int[] newStarts, int newFrom, int newTo) {
+		// number the distinct lines, so comparisons are on ints
+		HashMap<String, Integer> ids = new HashMap<>();
+		final int n = oldTo - oldFrom, m = newTo - newFrom;
+		int[] a = new int[n], b = new int[m];
+		for(int i = 0; i < n; ++i) {
+			a[i] = ids.computeIfAbsent(oldText.substring(oldStarts[oldFrom + i], oldStarts[oldFrom + i + 1]), k -> ids.size());
+		}
+		for(int i = 0; i < m; ++i) {
+			b[i] = ids.computeIfAbsent(newText.substring(newStarts[newFrom + i], newStarts[newFrom + i + 1]), k -> ids.size());
+		}
+		// greedy forward search, v[off+k] is the furthest x on diagonal k
+		final int max = Math.min(n + m, MAX_DIFF_EDITS);
+		final int off = max + 1;
+		int[] v = new int[2 * max + 3];
+		ArrayList<int[]> trace = new ArrayList<>();
+		int found = -1;
+		search:for(int d = 0; d <= max; ++d) {
+			trace.add(Arrays.copyOfRange(v, off - d - 1, off + d + 2));
+			for(int k = -d; k <= d; k += 2) {
+				int x = (k == -d || (k != d && v[off + k - 1] < v[off + k + 1]))
+						? v[off + k + 1] : v[off + k - 1] + 1;
+				int y = x - k;
+				while(x < n && y < m && a[x] == b[y]) {
+					x++;
+					y++;
+				}
+				v[off + k] = x;
+				if(x >= n && y >= m) {
+					found = d;
+					break search;
+				}
+			}
+		}
+		if(found < 0) {
+			return null;
+		}
+		// walk back to collect the matching runs, as x, y, length, last first
+		ArrayList<int[]> runs = new ArrayList<>();
+		int x = n, y = m;
+		for(int d = found; d > 0; --d) {
+			int[] prev = trace.get(d);
+			int base = -d - 1;
+			int k = x - y;
+			boolean down = k == -d || (k != d && prev[k - 1 - base] < prev[k + 1 - base]);
+			int prevK = down ? k + 1 : k - 1;
+			int prevX = prev[prevK - base];
+			int midX = down ? prevX : prevX + 1;
+			if(x > midX) {
+				runs.add(new int[] {midX, midX - k, x - midX});
+			}
+			x = prevX;
+			y = prevX - prevK;
+		}
+		if(x > 0) {
+			runs.add(new int[] {0, 0, x});
+		}
+		// changes are the gaps between matching runs
+		int[] hunks = new int[4 * (runs.size() + 1)];
+		int count = 0, i = 0, j = 0;
+		for(int r = runs.size() - 1; r >= -1; --r) {
+			int rx = r >= 0 ? runs.get(r)[0] : n, ry = r >= 0 ? runs.get(r)[1] : m;
+			if(rx > i || ry > j) {
+				hunks[count++] = oldFrom + i;
+				hunks[count++] = oldFrom + rx;
+				hunks[count++] = newFrom + j;
+				hunks[count++] = newFrom + ry;
+			}
+			if(r >= 0) {
+				i = rx + runs.get(r)[2];
+				j = ry + runs.get(r)[2];
+			}
+		}
+		return Arrays.copyOf(hunks, count);
 	}
 
 }
@@ -9,6 +9,7 @@ import javax.swing.event.UndoableEditEvent;
 import javax.swing.event.UndoableEditListener;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.CompoundEdit;
 import javax.swing.undo.UndoableEdit;
 
 /**
@@ -108,6 +109,18 @@ public class TimedUndoManagerV2 implements UndoableEditListener {
 	 * into the right (last) of the {@link #past}.
 	 */
 	public ArrayDeque<TimedEdit> future;
+	/**
+	 * Edits being collected into one, see {@link #beginCompound()}
+	 */
+	private CompoundEdit compound;
+	/**
+	 * Number of {@link #beginCompound()} calls not yet ended
+	 */
+	private int compoundDepth;
+	/**
+	 * Number of edits in {@link #compound}
+	 */
+	private int compoundSize;
 	
 	/**
 	 * Default constructor.
@@ -123,12 +136,27 @@ public class TimedUndoManagerV2 implements UndoableEditListener {
 
 	@Override
 	public void undoableEditHappened(UndoableEditEvent e) {
+		if(compound != null) {
+			// collected, recorded when the compound ends
+			compound.addEdit(e.getEdit());
+			compoundSize++;
+			return;
+		}
+		record(e.getEdit());
+	}
+	
+	/**
+	 * Record an edit in the past.
+	 * 
+	 * @param anEdit the edit
+	 */
+	private void record(UndoableEdit anEdit) {
 		// this future is no longer possible
 		// since we did something different
 		future.clear();
 		// record new event in the past
 		TimedEdit edit = new TimedEdit(
-				e.getEdit(),
+				anEdit,
 				lastEditTime = System.currentTimeMillis() + timeOffset
 				);
 		past.addLast(edit);
@@ -136,6 +164,35 @@ public class TimedUndoManagerV2 implements UndoableEditListener {
 		checkTrim();
 	}
 	
+	/**
+	 * Start collecting edits into a single low-level entry,
+	 * until the matching {@link #endCompound()}.
+	 * Use this when one user action makes many edits, such as rewriting
+	 * many lines, so the action takes one entry no matter how many
+	 * edits it made, and can not be partly trimmed away by {@link #pastLimit}.
+	 * Calls may be nested, only the outermost pair counts.
+	 */
+	public void beginCompound() {
+		if(compoundDepth++ == 0) {
+			compound = new CompoundEdit();
+			compoundSize = 0;
+		}
+	}
+	
+	/**
+	 * Stop collecting edits started by {@link #beginCompound()},
+	 * and record them as one entry, if there were any.
+	 */
+	public void endCompound() {
+		if(--compoundDepth > 0)return;
+		CompoundEdit edit = compound;
+		compound = null;
+		edit.end();
+		if(compoundSize > 0) {
+			record(edit);
+		}
+	}
+	
 	/**
 	 * Inject a time gap between the real-time past and the real-time future,
 	 * with size equal to the inactivity threshold.
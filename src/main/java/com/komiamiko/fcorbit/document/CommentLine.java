@@ -19,10 +19,19 @@ public class CommentLine implements FCDocumentLine {
 	 * Sub-line number, as would be returned by {@link #getSubLineNumber()}
 	 */
 	protected int subline;
+	/**
+	 * Line id, as would be returned by {@link #getId()}
+	 */
+	protected int id = FCDocument.newLineId();
 	/**
 	 * The text of this line.
 	 */
 	public String text;
+	/**
+	 * Why this line is not an FC object, kept for display.
+	 * May be null if it was never parsed.
+	 */
+	public ParseDiagnostic diagnostic;
 	
 	/**
 	 * Usual constructor, with text and line number.
@@ -31,7 +40,19 @@ public class CommentLine implements FCDocumentLine {
 	 * @param line line number
 	 */
 	public CommentLine(String text, int line) {
+		this(text, line, null);
+	}
+	
+	/**
+	 * Constructor for a line which failed to parse as an FC object.
+	 * 
+	 * @param text text of the line
+	 * @param line line number
+	 * @param diagnostic why parsing failed
+	 */
+	public CommentLine(String text, int line, ParseDiagnostic diagnostic) {
 		this.text = text;
+		this.diagnostic = diagnostic;
 		setLineNumber(line, 0);
 	}
 
@@ -51,6 +72,11 @@ public class CommentLine implements FCDocumentLine {
 		this.subline = subline;
 	}
 
+	@Override
+	public int getId() {
+		return id;
+	}
+
 	@Override
 	public int hashCode() {
 		return Objects.hash(text);
@@ -70,5 +96,10 @@ public class CommentLine implements FCDocumentLine {
 	public String toString() {
 		return text;
 	}
+	
+	@Override
+	public void appendTo(StringBuilder sb) {
+		sb.append(text);
+	}
 
 }
@@ -0,0 +1,531 @@
+package com.komiamiko.fcorbit.document;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable document, a list of lines which is never modified
+ * <br>
+ * Every change makes a new document which shares almost all of its
+ * structure with the old one, so keeping old documents around as
+ * snapshots is free, and a change costs O(log n) plus the size of the change.
+ * <br>
+ * Internally this is a balanced tree of small arrays of lines.
+ * Branches only hold their size and height, and are kept balanced
+ * the same way as an AVL tree, by joining and splitting.
+ * <br>
+ * The lines themselves are shared between documents too,
+ * so code which makes a change should put new line objects in
+ * rather than modifying the old ones.
+ * Line numbers on the line objects are not part of the document.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public final class FCDocument extends AbstractList<FCDocumentLine> implements RandomAccess {
+
+	/**
+	 * Most lines held in one leaf
+	 */
+	static final int LEAF_SIZE = 32;
+
+	/**
+	 * The empty document
+	 */
+	public static final FCDocument EMPTY = new FCDocument(null);
+
+	/**
+	 * Source of line ids, lines may be parsed on any thread
+	 */
+	private static final AtomicInteger lineIds = new AtomicInteger();
+
+	/**
+	 * Get a new line id, not given out before unless
+	 * 2<sup>32</sup> ids have been, after which they wrap around
+	 *
+	 * @return the id
+	 * @see FCDocumentLine#getId()
+	 */
+	static int newLineId(){
+		return lineIds.getAndIncrement();
+	}
+
+	/**
+	 * Tree node
+	 */
+	static abstract class Node {
+		final int size;
+		final int height;
+
+		Node(int size,int height){
+			this.size = size;
+			this.height = height;
+		}
+	}
+
+	/**
+	 * Node which holds lines
+	 */
+	static final class Leaf extends Node {
+		final FCDocumentLine[] lines;
+
+		Leaf(FCDocumentLine[] lines){
+			super(lines.length, 0);
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * Node with two children, both non-null
+	 */
+	static final class Branch extends Node {
+		final Node left, right;
+
+		Branch(Node left,Node right){
+			super(left.size+right.size, Math.max(left.height, right.height)+1);
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	/**
+	 * Root of the tree, null if empty
+	 */
+	private final Node root;
+
+	private FCDocument(Node root){
+		this.root = root;
+	}
+
+	private static FCDocument wrap(Node root){
+		return root==null?EMPTY:new FCDocument(root);
+	}
+
+	/**
+	 * Make a document holding some lines, in order
+	 *
+	 * @param lines the lines
+	 * @return the document
+	 */
+	public static FCDocument of(List<? extends FCDocumentLine> lines){
+		if(lines instanceof FCDocument)return (FCDocument)lines;
+		return wrap(build(lines.toArray(new FCDocumentLine[0]), 0, lines.size()));
+	}
+
+	/**
+	 * Give newly parsed lines the ids of the old lines they replace,
+	 * wherever they are the same line
+	 * <br>
+	 * Matches the unchanged lines at the start and at the end,
+	 * which is where a reparse leaves lines untouched,
+	 * so objects keep their identity when text elsewhere is edited
+	 *
+	 * @param old the lines being replaced
+	 * @param lines the new lines, which have not been shared yet
+	 */
+	public static void keepIds(List<? extends FCDocumentLine> old,List<? extends FCDocumentLine> lines){
+		int n = Math.min(old.size(), lines.size());
+		int head = 0;
+		Iterator<? extends FCDocumentLine> oldIt = old.iterator(), newIt = lines.iterator();
+		while(head<n&&adoptId(oldIt.next(), newIt.next()))head++;
+		for(int i=1;i<=n-head;i++){
+			if(!adoptId(old.get(old.size()-i), lines.get(lines.size()-i)))break;
+		}
+	}
+
+	/**
+	 * Give a line the id of an old line if they are the same
+	 *
+	 * @return true if they are the same
+	 */
+	private static boolean adoptId(FCDocumentLine old,FCDocumentLine line){
+		if(old instanceof FCObj&&line instanceof FCObj){
+			FCObj oldObj = (FCObj)old, obj = (FCObj)line;
+			if(oldObj.z!=obj.z||!oldObj.equals(obj))return false;
+			obj.id = oldObj.id;
+			return true;
+		}
+		if(old instanceof CommentLine&&line instanceof CommentLine){
+			if(!old.equals(line))return false;
+			((CommentLine)line).id = ((CommentLine)old).id;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Build a perfectly balanced tree, in linear time
+	 */
+	private static Node build(FCDocumentLine[] lines,int from,int to){
+		int n = to-from;
+		if(n==0)return null;
+		if(n<=LEAF_SIZE)return new Leaf(Arrays.copyOfRange(lines, from, to));
+		// split so both halves have a whole number of full leaves where possible
+		int leaves = (n+LEAF_SIZE-1)/LEAF_SIZE;
+		int mid = from+(leaves/2)*LEAF_SIZE;
+		return new Branch(build(lines, from, mid), build(lines, mid, to));
+	}
+
+	@Override
+	public int size(){
+		return root==null?0:root.size;
+	}
+
+	@Override
+	public FCDocumentLine get(int index){
+		if(index<0||index>=size())throw new IndexOutOfBoundsException("Index "+index+" out of bounds for length "+size());
+		Node node = root;
+		while(node instanceof Branch){
+			Branch branch = (Branch)node;
+			if(index<branch.left.size){
+				node = branch.left;
+			}else{
+				index -= branch.left.size;
+				node = branch.right;
+			}
+		}
+		return ((Leaf)node).lines[index];
+	}
+
+	/**
+	 * Make a document with one line replaced
+	 *
+	 * @param index index of the line
+	 * @param line the new line
+	 * @return the new document
+	 */
+	public FCDocument with(int index,FCDocumentLine line){
+		if(index<0||index>=size())throw new IndexOutOfBoundsException("Index "+index+" out of bounds for length "+size());
+		return new FCDocument(with(root, index, line));
+	}
+
+	private static Node with(Node node,int index,FCDocumentLine line){
+		if(node instanceof Leaf){
+			FCDocumentLine[] lines = ((Leaf)node).lines.clone();
+			lines[index] = line;
+			return new Leaf(lines);
+		}
+		Branch branch = (Branch)node;
+		if(index<branch.left.size){
+			return new Branch(with(branch.left, index, line), branch.right);
+		}else{
+			return new Branch(branch.left, with(branch.right, index-branch.left.size, line));
+		}
+	}
+
+	/**
+	 * Make a document with many lines replaced at once
+	 * <br>
+	 * Each leaf and branch on the way to a replaced line is copied only once,
+	 * however many of its lines are replaced.
+	 *
+	 * @param indices indices of the lines to replace
+	 * @param lines the new lines, one for each index in increasing order
+	 * @return the new document
+	 */
+	public FCDocument withAll(BitSet indices,FCDocumentLine[] lines){
+		if(indices.length()>size())throw new IndexOutOfBoundsException("Index "+(indices.length()-1)+" out of bounds for length "+size());
+		if(indices.cardinality()!=lines.length)throw new IllegalArgumentException(indices.cardinality()+" indices but "+lines.length+" lines");
+		if(lines.length==0)return this;
+		return new FCDocument(withAll(root, 0, indices, lines, new int[1]));
+	}
+
+	/**
+	 * @param offset index of the first line under the node
+	 * @param next holds the index in lines of the next line to put in
+	 */
+	private static Node withAll(Node node,int offset,BitSet indices,FCDocumentLine[] lines,int[] next){
+		int first = indices.nextSetBit(offset);
+		if(first<0||first>=offset+node.size)return node;
+		if(node instanceof Leaf){
+			FCDocumentLine[] leaf = ((Leaf)node).lines.clone();
+			for(int i=first;i>=0&&i<offset+node.size;i=indices.nextSetBit(i+1)){
+				leaf[i-offset] = lines[next[0]++];
+			}
+			return new Leaf(leaf);
+		}
+		Branch branch = (Branch)node;
+		Node left = withAll(branch.left, offset, indices, lines, next);
+		Node right = withAll(branch.right, offset+branch.left.size, indices, lines, next);
+		return new Branch(left, right);
+	}
+
+	/**
+	 * Make a document with a range of lines replaced by other lines
+	 *
+	 * @param from index of the first line to replace
+	 * @param to index after the last line to replace
+	 * @param lines the lines to put there instead
+	 * @return the new document
+	 */
+	public FCDocument splice(int from,int to,List<? extends FCDocumentLine> lines){
+		if(from<0||to>size()||from>to)throw new IndexOutOfBoundsException("Range ["+from+", "+to+") out of bounds for length "+size());
+		Node[] head = split(root, from);
+		Node[] tail = split(head[1], to-from);
+		Node middle = lines instanceof FCDocument?((FCDocument)lines).root:build(lines.toArray(new FCDocumentLine[0]), 0, lines.size());
+		return wrap(join(join(head[0], middle), tail[1]));
+	}
+
+	/**
+	 * Make a document with a range of lines removed
+	 *
+	 * @param from index of the first line to remove
+	 * @param to index after the last line to remove
+	 * @return the new document
+	 */
+	public FCDocument without(int from,int to){
+		return splice(from, to, EMPTY);
+	}
+
+	/**
+	 * Get a document holding a range of lines
+	 *
+	 * @param from index of the first line
+	 * @param to index after the last line
+	 * @return the range as a document
+	 */
+	public FCDocument range(int from,int to){
+		if(from<0||to>size()||from>to)throw new IndexOutOfBoundsException("Range ["+from+", "+to+") out of bounds for length "+size());
+		return wrap(split(split(root, from)[1], to-from)[0]);
+	}
+
+	/**
+	 * Split a tree into the first n lines and the rest
+	 *
+	 * @return two trees, either may be null
+	 */
+	private static Node[] split(Node node,int n){
+		if(node==null)return new Node[]{null, null};
+		if(n<=0)return new Node[]{null, node};
+		if(n>=node.size)return new Node[]{node, null};
+		if(node instanceof Leaf){
+			FCDocumentLine[] lines = ((Leaf)node).lines;
+			return new Node[]{new Leaf(Arrays.copyOf(lines, n)), new Leaf(Arrays.copyOfRange(lines, n, lines.length))};
+		}
+		Branch branch = (Branch)node;
+		int ls = branch.left.size;
+		if(n==ls)return new Node[]{branch.left, branch.right};
+		if(n<ls){
+			Node[] parts = split(branch.left, n);
+			parts[1] = join(parts[1], branch.right);
+			return parts;
+		}else{
+			Node[] parts = split(branch.right, n-ls);
+			parts[0] = join(branch.left, parts[0]);
+			return parts;
+		}
+	}
+
+	/**
+	 * Concatenate two trees, keeping balance
+	 *
+	 * @return the joined tree
+	 */
+	private static Node join(Node a,Node b){
+		if(a==null)return b;
+		if(b==null)return a;
+		if(a.height>b.height+1)return joinRight(a, b);
+		if(b.height>a.height+1)return joinLeft(a, b);
+		return pair(a, b);
+	}
+
+	/**
+	 * Join two trees whose heights differ by at most 1,
+	 * merging small leaves
+	 */
+	private static Node pair(Node a,Node b){
+		if(a instanceof Leaf&&b instanceof Leaf&&a.size+b.size<=LEAF_SIZE){
+			FCDocumentLine[] al = ((Leaf)a).lines, bl = ((Leaf)b).lines;
+			FCDocumentLine[] lines = Arrays.copyOf(al, al.length+bl.length);
+			System.arraycopy(bl, 0, lines, al.length, bl.length);
+			return new Leaf(lines);
+		}
+		return new Branch(a, b);
+	}
+
+	private static Node joinRight(Node a,Node b){
+		Branch branch = (Branch)a;
+		Node l = branch.left, r = branch.right;
+		Node joined = r.height<=b.height+1?pair(r, b):joinRight(r, b);
+		if(joined.height<=l.height+1)return new Branch(l, joined);
+		if(joined.height>l.height+1&&joined instanceof Branch){
+			Branch jb = (Branch)joined;
+			if(jb.left.height>jb.right.height)joined = rotateRight(jb);
+		}
+		return rotateLeft(new Branch(l, joined));
+	}
+
+	private static Node joinLeft(Node a,Node b){
+		Branch branch = (Branch)b;
+		Node l = branch.left, r = branch.right;
+		Node joined = l.height<=a.height+1?pair(a, l):joinLeft(a, l);
+		if(joined.height<=r.height+1)return new Branch(joined, r);
+		if(joined.height>r.height+1&&joined instanceof Branch){
+			Branch jb = (Branch)joined;
+			if(jb.right.height>jb.left.height)joined = rotateLeft(jb);
+		}
+		return rotateRight(new Branch(joined, r));
+	}
+
+	/**
+	 * (a, (b, c)) to ((a, b), c)
+	 */
+	private static Branch rotateLeft(Branch node){
+		Branch right = (Branch)node.right;
+		return new Branch(new Branch(node.left, right.left), right.right);
+	}
+
+	/**
+	 * ((a, b), c) to (a, (b, c))
+	 */
+	private static Branch rotateRight(Branch node){
+		Branch left = (Branch)node.left;
+		return new Branch(left.left, new Branch(left.right, node.right));
+	}
+
+	@Override
+	public Iterator<FCDocumentLine> iterator(){
+		return new Iterator<FCDocumentLine>(){
+
+			private final ArrayDeque<Node> stack = new ArrayDeque<>();
+			private FCDocumentLine[] leaf = new FCDocumentLine[0];
+			private int index;
+
+			{
+				if(root!=null)stack.push(root);
+			}
+
+			@Override
+			public boolean hasNext(){
+				while(index==leaf.length){
+					if(stack.isEmpty())return false;
+					Node node = stack.pop();
+					while(node instanceof Branch){
+						Branch branch = (Branch)node;
+						stack.push(branch.right);
+						node = branch.left;
+					}
+					leaf = ((Leaf)node).lines;
+					index = 0;
+				}
+				return true;
+			}
+
+			@Override
+			public FCDocumentLine next(){
+				if(!hasNext())throw new NoSuchElementException();
+				return leaf[index++];
+			}
+
+		};
+	}
+
+	/**
+	 * Height of the tree, 0 if it is a single leaf or empty
+	 *
+	 * @return the height
+	 */
+	int height(){
+		return root==null?0:root.height;
+	}
+
+	/**
+	 * Check the tree is well formed, used only for testing
+	 *
+	 * @return true if sizes, heights and balance are all consistent
+	 */
+	boolean isValid(){
+		return root==null||isValid(root);
+	}
+
+	private static boolean isValid(Node node){
+		if(node instanceof Leaf){
+			return node.height==0&&node.size>0&&node.size<=LEAF_SIZE;
+		}
+		Branch branch = (Branch)node;
+		return isValid(branch.left)&&isValid(branch.right)
+				&&branch.size==branch.left.size+branch.right.size
+				&&branch.height==Math.max(branch.left.height, branch.right.height)+1
+				&&Math.abs(branch.left.height-branch.right.height)<=1;
+	}
+
+	/**
+	 * Main method, used only for testing
+	 * <br>
+	 * Checks random edits against an ordinary list
+	 *
+	 * @param args ignored
+	 */
+	public static void main(String[] args){
+		java.util.Random random = new java.util.Random(17);
+		java.util.ArrayList<FCDocumentLine> expected = new java.util.ArrayList<>();
+		FCDocument actual = EMPTY;
+		FCDocument snapshot = EMPTY;
+		java.util.ArrayList<FCDocumentLine> snapshotExpected = new java.util.ArrayList<>();
+		int counter = 0, mismatches = 0, maxHeight = 0;
+		for(int t=0;t<20000;t++){
+			int n = expected.size();
+			switch(random.nextInt(5)){
+			case 0:{
+				int i = random.nextInt(n+1), j = Math.min(n, i+random.nextInt(4));
+				java.util.ArrayList<FCDocumentLine> lines = new java.util.ArrayList<>();
+				int k = random.nextInt(10)==0?random.nextInt(200):random.nextInt(4);
+				for(int m=0;m<k;m++)lines.add(new CommentLine(Integer.toString(counter++), 0));
+				expected.subList(i, j).clear();
+				expected.addAll(i, lines);
+				actual = actual.splice(i, j, lines);
+				break;
+			}
+			case 1:{
+				if(n==0)break;
+				int i = random.nextInt(n);
+				FCDocumentLine line = new CommentLine(Integer.toString(counter++), 0);
+				expected.set(i, line);
+				actual = actual.with(i, line);
+				break;
+			}
+			case 2:{
+				int i = random.nextInt(n+1), j = Math.min(n, i+random.nextInt(8));
+				expected.subList(i, j).clear();
+				actual = actual.without(i, j);
+				break;
+			}
+			case 3:{
+				if(n==0||random.nextInt(4)!=0)break;
+				BitSet indices = new BitSet();
+				int k = random.nextInt(Math.min(n, 100))+1;
+				for(int m=0;m<k;m++)indices.set(random.nextInt(n));
+				FCDocumentLine[] lines = new FCDocumentLine[indices.cardinality()];
+				for(int i=indices.nextSetBit(0),m=0;i>=0;i=indices.nextSetBit(i+1),m++){
+					expected.set(i, lines[m] = new CommentLine(Integer.toString(counter++), 0));
+				}
+				actual = actual.withAll(indices, lines);
+				break;
+			}
+			default:{
+				if(random.nextInt(50)==0){
+					snapshot = actual;
+					snapshotExpected = new java.util.ArrayList<>(expected);
+				}
+			}
+			}
+			if(!actual.isValid())mismatches++;
+			maxHeight = Math.max(maxHeight, actual.height());
+		}
+		if(!actual.equals(expected))mismatches++;
+		if(!new java.util.ArrayList<>(actual).equals(expected))mismatches++;
+		if(!snapshot.equals(snapshotExpected))mismatches++;
+		int from = expected.size()/3, to = expected.size()*2/3;
+		if(!actual.range(from, to).equals(expected.subList(from, to)))mismatches++;
+		System.out.println("--- Persistent document ---");
+		System.out.println(actual.size()+" lines, height "+maxHeight+", "+mismatches+" mismatches (expected 0)");
+	}
+
+}
@@ -16,12 +16,13 @@ public interface FCDocumentLine {
 			.thenComparingInt(FCDocumentLine::getSubLineNumber);
 	
 	/**
-	 * Get the line number within the document.
+	 * Get the line number the line was made with.
 	 * <br>
 	 * Lines are sorted by lexicographic order on (line, subline).
-	 * After any operation is finalized, the line numbers are always
-	 * normalized so that line counts up from 0 and subline = 0.
-	 * In an intermediate step, subline may be useful to instruct
+	 * Once a line is in an {@link FCDocument} its number is not kept up to date,
+	 * since the line may be shared with older documents,
+	 * and its index in the document is its line number instead.
+	 * For new lines, subline may be useful to instruct
 	 * the editor to insert multiple lines at a location.
 	 * <br>
 	 * Line number is not to be used in equality or hashing.
@@ -47,4 +48,27 @@ public interface FCDocumentLine {
 	 */
 	public void setLineNumber(int line, int subline);
 	
+	/**
+	 * Get the id of this line.
+	 * <br>
+	 * Every parsed line gets an id no other line had before.
+	 * Unlike the line number, it does not change when lines are
+	 * inserted or deleted before it, and copies made to change
+	 * a line keep the id, so it can be used to remember
+	 * a line across edits, such as in {@link FCSelection}.
+	 * 
+	 * @return the id
+	 */
+	public int getId();
+	
+	/**
+	 * Append the text of this line, the same as {@link #toString()},
+	 * but without making a string where that can be avoided.
+	 * 
+	 * @param sb where to append
+	 */
+	public default void appendTo(StringBuilder sb) {
+		sb.append(toString());
+	}
+	
 }
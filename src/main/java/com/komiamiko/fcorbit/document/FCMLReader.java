@@ -0,0 +1,306 @@
+package com.komiamiko.fcorbit.document;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Streaming loader which reads lines of text and parses them
+ * one at a time, without ever holding the whole text as one string
+ * <br>
+ * Lines are split the same way as the text document does, so
+ * there is exactly one line per newline plus one, including a trailing
+ * empty line. A carriage return just before a newline is dropped.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public class FCMLReader implements Closeable {
+
+	/**
+	 * Initial buffer size in characters, grows if a single line is longer
+	 */
+	public static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Where the characters come from
+	 */
+	private final Reader in;
+	/**
+	 * Format to parse lines with
+	 */
+	private final String format;
+	/**
+	 * Unread characters are in [pos, limit)
+	 */
+	private char[] buffer = new char[BUFFER_SIZE];
+	/**
+	 * Wraps {@link #buffer} so it can be given to the parser
+	 */
+	private CharBuffer view = CharBuffer.wrap(buffer);
+	private int pos, limit;
+	/**
+	 * Has the underlying reader run out?
+	 */
+	private boolean eof;
+	/**
+	 * Has the last line been returned?
+	 */
+	private boolean done;
+	/**
+	 * Line number of the next line
+	 */
+	private int lineNumber;
+
+	/**
+	 * Read lines from a reader.
+	 *
+	 * @param in source of text
+	 * @param format string to indicate the format used
+	 */
+	public FCMLReader(Reader in, String format) {
+		this.in = in;
+		this.format = format;
+	}
+
+	/**
+	 * Read lines from a byte stream with the given encoding.
+	 *
+	 * @param in source of encoded text
+	 * @param charset encoding of the text
+	 * @param format string to indicate the format used
+	 */
+	public FCMLReader(InputStream in, Charset charset, String format) {
+		this(new InputStreamReader(in, charset), format);
+	}
+
+	/**
+	 * Read lines from a UTF-8 file, which is memory-mapped and
+	 * decoded a buffer at a time.
+	 *
+	 * @param path file to read
+	 * @param format string to indicate the format used
+	 * @return a reader for the file
+	 * @throws IOException if the file could not be opened or mapped
+	 */
+	public static FCMLReader open(Path path, String format) throws IOException {
+		ByteBuffer mapped;
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)throw new IOException("File too large to map: " + path);
+			// the mapping stays valid after the channel is closed
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		return new FCMLReader(new MappedReader(mapped, StandardCharsets.UTF_8), format);
+	}
+
+	/**
+	 * Get the line number that the next line will have.
+	 *
+	 * @return the line number
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * Read and parse the next line.
+	 *
+	 * @return the next line, or null if there are no more
+	 * @throws IOException if the underlying reader fails
+	 */
+	public FCDocumentLine next() throws IOException {
+		if(done)return null;
+		int scan = pos;
+		while(true) {
+			while(scan < limit && buffer[scan] != '\n')scan++;
+			if(scan < limit || eof)break;
+			// need more characters, with room for at least a surrogate pair
+			if(buffer.length - limit < 2) {
+				if(pos > 0) {
+					System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+					scan -= pos;
+					limit -= pos;
+					pos = 0;
+				}
+				if(buffer.length - limit < 2) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					view = CharBuffer.wrap(buffer);
+				}
+			}
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if(n < 0) {
+				eof = true;
+			}else{
+				limit += n;
+			}
+		}
+		boolean last = scan == limit;
+		int end = scan;
+		if(!last && end > pos && buffer[end - 1] == '\r')end--;
+		FCDocumentLine result = FCObj.tryParse(view, pos, end, format, lineNumber);
+		lineNumber++;
+		if(last) {
+			pos = limit;
+			done = true;
+		}else{
+			pos = scan + 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Read and parse all remaining lines.
+	 *
+	 * @param target list to append to
+	 * @throws IOException if the underlying reader fails
+	 */
+	public void readAllTo(ArrayList<FCDocumentLine> target) throws IOException {
+		for(FCDocumentLine line; (line = next()) != null;) {
+			target.add(line);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Main method, used only for testing
+	 * <br>
+	 * Reads lines with a character outside the BMP placed around the
+	 * end of the first buffer, from a mapped file and from a string
+	 *
+	 * @param args ignored
+	 * @throws IOException if the temporary file could not be used
+	 */
+	public static void main(String[] args) throws IOException {
+		int mismatches = 0;
+		Path file = java.nio.file.Files.createTempFile("fcmlreader", ".txt");
+		try {
+			for(int pad = BUFFER_SIZE - 4; pad <= BUFFER_SIZE + 4; pad++) {
+				char[] xs = new char[pad];
+				Arrays.fill(xs, 'x');
+				String comment = new String(xs) + "\uD83D\uDE00";
+				String text = comment + "\nSR (0, 0), (10, 10), 0\n";
+				java.nio.file.Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+				ArrayList<FCDocumentLine> mapped = new ArrayList<>();
+				try(FCMLReader reader = open(file, "fcml")) {
+					reader.readAllTo(mapped);
+				}
+				ArrayList<FCDocumentLine> plain = new ArrayList<>();
+				try(FCMLReader reader = new FCMLReader(new java.io.StringReader(text), "fcml")) {
+					reader.readAllTo(plain);
+				}
+				// one character at a time, which never has room for a whole surrogate pair
+				StringBuilder single = new StringBuilder();
+				try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					Reader reader = new MappedReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), StandardCharsets.UTF_8);
+					char[] one = new char[1];
+					for(int n; (n = reader.read(one, 0, 1)) != -1;) {
+						if(n != 1) {
+							mismatches++;
+							break;
+						}
+						single.append(one[0]);
+					}
+				}
+				if(!single.toString().equals(text))mismatches++;
+				for(ArrayList<FCDocumentLine> lines:java.util.List.of(mapped, plain)) {
+					if(lines.size() != 3)mismatches++;
+					else if(!lines.get(0).toString().equals(comment) || !(lines.get(1) instanceof FCObj))mismatches++;
+				}
+			}
+		}finally{
+			java.nio.file.Files.delete(file);
+		}
+		System.out.println("--- FCML reader ---");
+		System.out.println(mismatches + " mismatches (expected 0)");
+	}
+
+	/**
+	 * Reader which decodes directly out of a byte buffer,
+	 * such as a memory-mapped file
+	 *
+	 * @author komiamiko
+	 * @version 1.0
+	 */
+	static class MappedReader extends Reader {
+
+		private final ByteBuffer source;
+		private final CharsetDecoder decoder;
+		private boolean flushed;
+		/**
+		 * Characters decoded but not yet returned, in [spareStart, spareEnd),
+		 * used when the caller has room for less than a surrogate pair
+		 */
+		private final char[] spare = new char[2];
+		private int spareStart, spareEnd;
+
+		MappedReader(ByteBuffer source, Charset charset) {
+			this.source = source;
+			this.decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		/**
+		 * Never returns 0 for a non-empty request, since the decoder
+		 * can not write half of a surrogate pair into a single free slot
+		 */
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if(len == 0)return 0;
+			if(spareStart == spareEnd && len < 2) {
+				spareStart = 0;
+				spareEnd = decode(spare, 0, spare.length);
+			}
+			if(spareStart < spareEnd) {
+				int n = Math.min(len, spareEnd - spareStart);
+				System.arraycopy(spare, spareStart, cbuf, off, n);
+				spareStart += n;
+				return n;
+			}
+			int n = decode(cbuf, off, len);
+			return n == 0 && flushed ? -1 : n;
+		}
+
+		/**
+		 * Decode as much as fits, which is at least one character
+		 * unless the input is used up, as long as len is at least 2
+		 */
+		private int decode(char[] cbuf, int off, int len) throws IOException {
+			CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+			if(!flushed) {
+				CoderResult result = decoder.decode(source, out, true);
+				if(result.isUnderflow()) {
+					result = decoder.flush(out);
+					if(result.isUnderflow())flushed = true;
+				}
+				if(result.isError())result.throwException();
+			}
+			return out.position() - off;
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
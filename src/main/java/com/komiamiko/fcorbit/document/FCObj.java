@@ -1,8 +1,8 @@
 package com.komiamiko.fcorbit.document;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Objects;
 
 import com.komiamiko.fcorbit.Bits;
@@ -30,14 +30,6 @@ public class FCObj implements FCDocumentLine {
 		
 	};
 	
-	/**
-	 * Translates an object name to a standard type
-	 */
-	public static final HashMap<String,Integer> nameToType = new HashMap<>();
-	/**
-	 * Translates a standard type to an object name
-	 */
-	public static final HashMap<Integer,String> typeToName = new HashMap<>();
 	/**
 	 * Use this bit to test if a type is a circle or a rectangle
 	 */
@@ -79,96 +71,8 @@ public class FCObj implements FCDocumentLine {
 	 */
 	public static final int TYPE_NOSELFCOLLIDE = 9;
 	
-	/**
-	 * Quickly add a pair
-	 * 
-	 * @param name
-	 * @param type
-	 */
-	public static void addNameType(String name,int type){
-		nameToType.put(name, type);
-		typeToName.put(type, name);
-	}
-	/**
-	 * Quickly add a pair
-	 * 
-	 * @param name
-	 * @param baseType original type
-	 * @param ts flags to toggle
-	 */
-	public static void addNameTypeBits(String name,int baseType,int...ts){
-		for(int i:ts){
-			baseType^=(1<<i);
-		}
-		addNameType(name,baseType);
-	}
-	/**
-	 * Add other names which are identical to some name
-	 * 
-	 * @param to the reference name
-	 * @param from
-	 */
-	public static void addAlias(String to,String...from){
-		int typeData = nameToType.get(to);
-		for(String v:from){
-			nameToType.put(v, typeData);
-		}
-	}
-	
-	/**
-	 * Add both rectangle and circle for type
-	 * 
-	 * @param name
-	 * @param baseType
-	 * @param ts
-	 */
-	public static void addNameTypeBitsPair(String name,int baseType,int...ts){
-		for(int i:ts){
-			baseType^=(1<<i);
-		}
-		addNameType(name+"Rect",baseType);
-		baseType^=(1<<TYPE_CIRCLE);
-		addNameType(name+"Circle",baseType);
-	}
-	
-	static{
-		// Add special
-		addNameTypeBits("Empty",0);
-		// Add nonstandard and standalone aliases first
-		addNameTypeBits("UnpowGoalCircle",0,TYPE_MOVABLE,TYPE_GOAL,TYPE_DESIGN,TYPE_JOINTABLE,TYPE_CIRCLE);
-		addNameTypeBits("CWGoalCircle",0,TYPE_MOVABLE,TYPE_GOAL,TYPE_DESIGN,TYPE_JOINTABLE,TYPE_CIRCLE,TYPE_POWERED,TYPE_CLOCKWISE);
-		addNameTypeBits("CCWGoalCircle",0,TYPE_MOVABLE,TYPE_GOAL,TYPE_DESIGN,TYPE_JOINTABLE,TYPE_CIRCLE,TYPE_POWERED);
-		// Add standard types next
-		addNameTypeBits("BuildArea",0,TYPE_UNROTATABLE);
-		addNameTypeBits("GoalArea",0,TYPE_UNROTATABLE,TYPE_GOAL);
-		addNameTypeBitsPair("Static",0,TYPE_COLLIDES);
-		addNameTypeBitsPair("Dynamic",0,TYPE_COLLIDES,TYPE_MOVABLE);
-		addNameTypeBitsPair("Goal",0,TYPE_MOVABLE,TYPE_GOAL,TYPE_DESIGN,TYPE_JOINTABLE);
-		addNameTypeBits("UnpowWheel",0,TYPE_MOVABLE,TYPE_DESIGN,TYPE_JOINTABLE,TYPE_CIRCLE);
-		addNameTypeBits("CWWheel",0,TYPE_MOVABLE,TYPE_DESIGN,TYPE_JOINTABLE,TYPE_CIRCLE,TYPE_POWERED,TYPE_CLOCKWISE);
-		addNameTypeBits("CCWWheel",0,TYPE_MOVABLE,TYPE_DESIGN,TYPE_JOINTABLE,TYPE_CIRCLE,TYPE_POWERED);
-		addNameTypeBits("WaterRod",0,TYPE_MOVABLE,TYPE_DESIGN,TYPE_JOINTABLE,TYPE_NOSELFCOLLIDE);
-		addNameTypeBits("WoodRod",0,TYPE_MOVABLE,TYPE_DESIGN,TYPE_JOINTABLE);
-		// Add separate aliases after
-		addAlias("BuildArea","BA","Build");
-		addAlias("GoalArea","GA","Goal");
-		addAlias("StaticRect","SR");
-		addAlias("StaticCircle","SC");
-		addAlias("DynamicRect","DR");
-		addAlias("DynamicCircle","DC");
-		addAlias("GoalRect","GR");
-		addAlias("GoalCircle","GC","GP","GB","UG","UGC");
-		addAlias("UnpowWheel","UW","Unpowered");
-		addAlias("CWWheel","WW","CWW","Clockwise");
-		addAlias("CCWWheel","CW","CCWW","Counterclockwise");
-		addAlias("CWGoalCircle","WG","WGC","CWGC");
-		addAlias("CCWGoalCircle","CG","CGC","CCWGC");
-		addAlias("WaterRod","BR","Water");
-		addAlias("WoodRod","WR","Wood");
-	}
-	
 	public int getTypeData(){
-		return nameToType.get(type);
+		return fcType.typeData;
 	}
 	
 	/**
@@ -178,17 +82,29 @@ public class FCObj implements FCDocumentLine {
 	 */
 	public int z=-1;
 	/**
-	 * Base type (name)
+	 * Base type (name), spelled as it was written, which may be an alias
 	 */
 	public String type;
+	/**
+	 * Canonical type, resolved from {@link #type}
+	 */
+	public FCType fcType;
 	/**
 	 * Center (x,y), dimensions (w,h), rotation degrees (r)
 	 */
 	public double x,y,w,h,r;
 	/**
-	 * If another object's z value is in this list, then they are connected
+	 * Shared empty joint array
+	 */
+	public static final int[] NO_JOINTS = new int[0];
+	
+	/**
+	 * If another object's z value is in this array, then they are connected
+	 * <br>
+	 * Treated as immutable so it can be shared between copies,
+	 * replace the whole array to change it
 	 */
-	public ArrayList<Integer> joints = new ArrayList<>();
+	public int[] joints = NO_JOINTS;
 	/**
 	 * Line number, as retrieved by {@link #getLineNumber()}
 	 */
@@ -197,16 +113,20 @@ public class FCObj implements FCDocumentLine {
 	 * Sub-line number, as retrieved by {@link #getSubLineNumber()}
 	 */
 	protected int subline;
+	/**
+	 * Line id, as retrieved by {@link #getId()}
+	 */
+	protected int id;
 	
 	/**
-	 * Default constructor, does nothing
+	 * Default constructor, only gives a new id
 	 */
 	public FCObj(){
-		
+		id = FCDocument.newLineId();
 	}
 	
 	/**
-	 * Copy constructor
+	 * Copy constructor, the copy keeps the id
 	 * 
 	 * @param source object to copy
 	 */
@@ -222,36 +142,11 @@ public class FCObj implements FCDocumentLine {
 	 * @param lineNumber the line number
 	 */
 	public FCObj(String text,String format,int lineNumber){
+		id = FCDocument.newLineId();
 		switch(format){
 		case "fcml":{
-			String[] tokens = text.split("[\\s(),\\[\\]]+");
-			int ntokens = tokens.length;
-			String[] typeBits = tokens[0].split("#");
-			type = typeBits[0];
-			if(!nameToType.containsKey(type))throw new IllegalArgumentException(text+"\nFC object type \""+type+"\" not recognized");
-			int typeData = nameToType.get(type);
-			if(Bits.readBit(typeData, TYPE_UNROTATABLE))z=-2;
-			if(Bits.readBit(typeData, TYPE_DESIGN))z=0;
-			if(typeBits.length==2){
-				if(!Bits.readBit(typeData,TYPE_DESIGN))throw new IllegalArgumentException(text+"\nOnly designs can have an index");
-				z = Integer.parseInt(typeBits[1]);
-				if(z<0)throw new IllegalArgumentException(text+"\nIndex cannot be negative");
-			}
-			if(typeBits.length>2)throw new IllegalArgumentException(text+"\nCan only have one index.");
-			x = Double.parseDouble(tokens[1]);
-			y = Double.parseDouble(tokens[2]);
-			w = Double.parseDouble(tokens[3]);
-			h = ntokens>4?Double.parseDouble(tokens[4]):w;
-			if(Bits.readBit(typeData,TYPE_CIRCLE)&&!Floats.isNear(w, h))throw new IllegalArgumentException(text+"\nThis type is a circle, so the width and height (diameter) must be the same");
-			r = ntokens>5?Double.parseDouble(tokens[5]):0;
-			if(Bits.readBit(typeData,TYPE_UNROTATABLE)&&!Floats.isNear(r, 0))throw new IllegalArgumentException(text+"\nThis type cannot be rotated");
-			for(int i=6;i<ntokens;i++){
-				String tk = tokens[i].trim();
-				if(tk.length()>0){
-					joints.add(Integer.parseInt(tk));
-				}
-			}
-			if(!Bits.readBit(typeData,TYPE_DESIGN)&&joints.size()>0)throw new IllegalArgumentException(text+"\nThis type is not a design piece, so it cannot be jointed");
+			ParseDiagnostic diagnostic = parseFcml(text,0,text.length());
+			if(diagnostic!=null)throw new IllegalArgumentException(text+"\n"+diagnostic);
 			break;
 		}
 		default:{
@@ -261,6 +156,265 @@ public class FCObj implements FCDocumentLine {
 		setLineNumber(lineNumber, 0);
 	}
 	
+	/**
+	 * Parse a single FCML line directly from a character range,
+	 * without splitting it into intermediate token arrays
+	 * <br>
+	 * Accepts exactly what the old {@code split("[\\s(),\\[\\]]+")}
+	 * based parser accepted: the type token must start at the very beginning,
+	 * after it any run of whitespace, parentheses, commas and brackets
+	 * separates tokens
+	 * <br>
+	 * Never throws for bad input, instead the problem is returned
+	 * 
+	 * @param text text containing the line
+	 * @param start index of the first character of the line
+	 * @param end index after the last character of the line
+	 * @return null on success, otherwise why the line is not an FC object
+	 */
+	private ParseDiagnostic parseFcml(CharSequence text,int start,int end){
+		// type token, which may not be preceded by a separator
+		int tkEnd = skipToken(text,start,end);
+		int hash = start;
+		while(hash<tkEnd&&text.charAt(hash)!='#')hash++;
+		if(hash==start)return new ParseDiagnostic("Missing FC object type", 0);
+		int typeSlot = FCType.find(text,start,hash);
+		if(typeSlot<0)return new ParseDiagnostic("FC object type not recognized", 0);
+		type = FCType.nameAt(typeSlot);
+		fcType = FCType.typeAt(typeSlot);
+		int typeData = fcType.typeData;
+		if(Bits.readBit(typeData, TYPE_UNROTATABLE))z=-2;
+		if(Bits.readBit(typeData, TYPE_DESIGN))z=0;
+		// index, ignoring trailing empty parts like split does
+		int idxStart = hash+1;
+		int idxEnd = idxStart;
+		while(idxEnd<tkEnd&&text.charAt(idxEnd)!='#')idxEnd++;
+		int partsEnd = tkEnd;
+		while(partsEnd>hash&&text.charAt(partsEnd-1)=='#')partsEnd--;
+		if(idxEnd<partsEnd)return new ParseDiagnostic("Can only have one index", idxEnd-start);
+		if(partsEnd>hash){
+			if(!Bits.readBit(typeData,TYPE_DESIGN))return new ParseDiagnostic("Only designs can have an index", hash-start);
+			long index = tryParseInt(text,idxStart,idxEnd);
+			if(index==PARSE_FAIL)return new ParseDiagnostic("Index is not an integer", idxStart-start);
+			if(index<0)return new ParseDiagnostic("Index cannot be negative", idxStart-start);
+			z = (int)index;
+		}
+		// numbers
+		int tkStart = skipSeparators(text,tkEnd,end);
+		tkEnd = skipToken(text,tkStart,end);
+		if(tkStart==end)return new ParseDiagnostic("Missing x coordinate", end-start);
+		if(!Floats.isParsableDouble(text,tkStart,tkEnd))return new ParseDiagnostic("x coordinate is not a number", tkStart-start);
+		x = Floats.parseDouble(text,tkStart,tkEnd);
+		tkStart = skipSeparators(text,tkEnd,end);
+		tkEnd = skipToken(text,tkStart,end);
+		if(tkStart==end)return new ParseDiagnostic("Missing y coordinate", end-start);
+		if(!Floats.isParsableDouble(text,tkStart,tkEnd))return new ParseDiagnostic("y coordinate is not a number", tkStart-start);
+		y = Floats.parseDouble(text,tkStart,tkEnd);
+		tkStart = skipSeparators(text,tkEnd,end);
+		tkEnd = skipToken(text,tkStart,end);
+		if(tkStart==end)return new ParseDiagnostic("Missing width", end-start);
+		if(!Floats.isParsableDouble(text,tkStart,tkEnd))return new ParseDiagnostic("Width is not a number", tkStart-start);
+		w = Floats.parseDouble(text,tkStart,tkEnd);
+		tkStart = skipSeparators(text,tkEnd,end);
+		tkEnd = skipToken(text,tkStart,end);
+		if(tkStart<end){
+			if(!Floats.isParsableDouble(text,tkStart,tkEnd))return new ParseDiagnostic("Height is not a number", tkStart-start);
+			h = Floats.parseDouble(text,tkStart,tkEnd);
+			if(Bits.readBit(typeData,TYPE_CIRCLE)&&!Floats.isNear(w, h))return new ParseDiagnostic("This type is a circle, so the width and height (diameter) must be the same", tkStart-start);
+		}else{
+			h = w;
+		}
+		tkStart = skipSeparators(text,tkEnd,end);
+		tkEnd = skipToken(text,tkStart,end);
+		if(tkStart<end){
+			if(!Floats.isParsableDouble(text,tkStart,tkEnd))return new ParseDiagnostic("Rotation is not a number", tkStart-start);
+			r = Floats.parseDouble(text,tkStart,tkEnd);
+			if(Bits.readBit(typeData,TYPE_UNROTATABLE)&&!Floats.isNear(r, 0))return new ParseDiagnostic("This type cannot be rotated", tkStart-start);
+		}else{
+			r = 0;
+		}
+		// joints
+		int[] jointBuffer = NO_JOINTS;
+		int njoints = 0;
+		while(true){
+			tkStart = skipSeparators(text,tkEnd,end);
+			if(tkStart==end)break;
+			tkEnd = skipToken(text,tkStart,end);
+			// same as trim(), tokens made only of control characters are ignored
+			int trStart = tkStart, trEnd = tkEnd;
+			while(trStart<trEnd&&text.charAt(trStart)<=' ')trStart++;
+			while(trStart<trEnd&&text.charAt(trEnd-1)<=' ')trEnd--;
+			if(trStart<trEnd){
+				if(!Bits.readBit(typeData,TYPE_DESIGN))return new ParseDiagnostic("This type is not a design piece, so it cannot be jointed", trStart-start);
+				long joint = tryParseInt(text,trStart,trEnd);
+				if(joint==PARSE_FAIL)return new ParseDiagnostic("Joint is not an integer", trStart-start);
+				if(njoints==jointBuffer.length)jointBuffer = Arrays.copyOf(jointBuffer, Math.max(4, njoints*2));
+				jointBuffer[njoints++] = (int)joint;
+			}
+		}
+		joints = njoints==jointBuffer.length?jointBuffer:Arrays.copyOf(jointBuffer, njoints);
+		return null;
+	}
+	
+	/**
+	 * Parse a line as an FC object if possible, otherwise
+	 * make it a comment line which remembers why
+	 * <br>
+	 * Unlike the parsing constructor, this does not throw for bad lines,
+	 * so it is cheap to use on documents with many comments
+	 * 
+	 * @param text text containing a single line
+	 * @param format string to indicate the format used
+	 * @param lineNumber the line number
+	 * @return an {@link FCObj} or a {@link CommentLine}
+	 */
+	public static FCDocumentLine tryParse(String text,String format,int lineNumber){
+		return tryParse(text,0,text.length(),format,lineNumber);
+	}
+	
+	/**
+	 * Parse a line as an FC object if possible, otherwise
+	 * make it a comment line which remembers why
+	 * 
+	 * @see #tryParse(String, String, int)
+	 * 
+	 * @param text text containing the line
+	 * @param start index of the first character of the line
+	 * @param end index after the last character of the line
+	 * @param format string to indicate the format used
+	 * @param lineNumber the line number
+	 * @return an {@link FCObj} or a {@link CommentLine}
+	 */
+	public static FCDocumentLine tryParse(CharSequence text,int start,int end,String format,int lineNumber){
+		switch(format){
+		case "fcml":{
+			FCObj result = new FCObj();
+			ParseDiagnostic diagnostic = result.parseFcml(text,start,end);
+			if(diagnostic!=null){
+				return new CommentLine(text.subSequence(start, end).toString(),lineNumber,diagnostic);
+			}
+			result.setLineNumber(lineNumber, 0);
+			return result;
+		}
+		default:{
+			throw new IllegalArgumentException("FC object format \""+format+"\" not known");
+		}
+		}
+	}
+	
+	/**
+	 * Is this character a token separator in FCML?
+	 * <br>
+	 * Matches the character class {@code [\\s(),\\[\\]]}
+	 * 
+	 * @param c the character
+	 * @return true if it separates tokens
+	 */
+	public static boolean isSeparator(char c){
+		switch(c){
+		case ' ':case '\t':case '\n':case '\u000b':case '\f':case '\r':
+		case '(':case ')':case ',':case '[':case ']':
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Advance past any separators
+	 * 
+	 * @param text
+	 * @param i current position
+	 * @param end stop position
+	 * @return the first position at or after i which is not a separator, or end
+	 */
+	public static int skipSeparators(CharSequence text,int i,int end){
+		while(i<end&&isSeparator(text.charAt(i)))i++;
+		return i;
+	}
+	
+	/**
+	 * Advance past a single token
+	 * 
+	 * @param text
+	 * @param i current position
+	 * @param end stop position
+	 * @return the first position at or after i which is a separator, or end
+	 */
+	public static int skipToken(CharSequence text,int i,int end){
+		while(i<end&&!isSeparator(text.charAt(i)))i++;
+		return i;
+	}
+	
+	/**
+	 * Returned by {@link #tryParseInt(CharSequence, int, int)} on failure,
+	 * which is outside the range of int
+	 */
+	public static final long PARSE_FAIL = Long.MIN_VALUE;
+	
+	/**
+	 * Parse an int from a character range, with the same result as
+	 * {@link Integer#parseInt(String)} on that range, but without throwing
+	 * 
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return the parsed int, or {@link #PARSE_FAIL} if it is not a valid int
+	 */
+	public static long tryParseInt(CharSequence text,int start,int end){
+		int i = start;
+		boolean negative = false;
+		if(i<end){
+			char c = text.charAt(i);
+			if(c=='-'){
+				negative = true;
+				i++;
+			}else if(c=='+'){
+				i++;
+			}
+		}
+		if(i==end)return PARSE_FAIL;
+		long result = 0;
+		for(;i<end;i++){
+			int d = Character.digit(text.charAt(i), 10);
+			if(d<0)return PARSE_FAIL;
+			result = result*10+d;
+			if(result>-(long)Integer.MIN_VALUE)return PARSE_FAIL;
+		}
+		if(negative)return -result;
+		if(result>Integer.MAX_VALUE)return PARSE_FAIL;
+		return result;
+	}
+	
+	/**
+	 * Parse an int from a character range, with the same result as
+	 * {@link Integer#parseInt(String)} on that range
+	 * 
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return the parsed int
+	 * @throws NumberFormatException if it is not a valid int
+	 */
+	public static int parseInt(CharSequence text,int start,int end){
+		long result = tryParseInt(text,start,end);
+		if(result==PARSE_FAIL)throw new NumberFormatException("For input string: \""+text.subSequence(start, end)+"\"");
+		return (int)result;
+	}
+	
+	/**
+	 * Set the type by name, which may be an alias
+	 * 
+	 * @param name name of the type
+	 * @throws IllegalArgumentException if the type is not known
+	 */
+	public void setType(String name){
+		FCType resolved = FCType.forName(name);
+		if(resolved==null)throw new IllegalArgumentException("FC object type \""+name+"\" not recognized");
+		type = name;
+		fcType = resolved;
+	}
+	
 	/**
 	 * Copy method
 	 * 
@@ -270,15 +424,16 @@ public class FCObj implements FCDocumentLine {
 		if(source==null)throw new NullPointerException("Can't copy a null object");
 		z=source.z;
 		type=source.type;
+		fcType=source.fcType;
 		x=source.x;
 		y=source.y;
 		w=source.w;
 		h=source.h;
 		r=source.r;
-		joints.clear();
-		joints.addAll(source.joints);
+		joints=source.joints;
 		line = source.getLineNumber();
 		subline = source.getSubLineNumber();
+		id = source.id;
 	}
 	
 	@Override
@@ -320,35 +475,55 @@ public class FCObj implements FCDocumentLine {
 	 * @return
 	 */
 	public String toString(String format){
+		StringBuilder sb = new StringBuilder();
+		appendTo(sb, format);
+		return sb.toString();
+	}
+	
+	@Override
+	public void appendTo(StringBuilder sb){
+		appendTo(sb, "fcml");
+	}
+	
+	/**
+	 * Export this object in a canonical format, appending it
+	 * without making any intermediate strings
+	 * <br>
+	 * Numbers are written with {@link Floats#appendDouble(StringBuilder, double)},
+	 * so they always parse back to exactly the same values
+	 * 
+	 * @param sb where to append
+	 * @param format format type
+	 */
+	public void appendTo(StringBuilder sb,String format){
 		switch(format){
 		case "fcml":{
-			StringBuilder sb = new StringBuilder();
 			sb.append(type);
 			if(z>=0){
 				sb.append('#');
 				sb.append(z);
 			}
 			sb.append(" (");
-			sb.append(x);
+			Floats.appendDouble(sb, x);
 			sb.append(", ");
-			sb.append(y);
+			Floats.appendDouble(sb, y);
 			sb.append("), (");
-			sb.append(w);
+			Floats.appendDouble(sb, w);
 			sb.append(", ");
-			sb.append(h);
+			Floats.appendDouble(sb, h);
 			sb.append("), ");
-			sb.append(r);
-			int jn = joints.size();
+			Floats.appendDouble(sb, r);
+			int jn = joints.length;
 			if(jn>0){
 				sb.append(", [");
-				sb.append(joints.get(0));
+				sb.append(joints[0]);
 				for(int i=1;i<jn;i++){
 					sb.append(", ");
-					sb.append(joints.get(i));
+					sb.append(joints[i]);
 				}
 				sb.append(']');
 			}
-			return sb.toString();
+			break;
 		}
 		default:{
 			throw new IllegalArgumentException("Unrecognized format \""+format+"\"");
@@ -542,5 +717,118 @@ public class FCObj implements FCDocumentLine {
 		this.line = line;
 		this.subline = subline;
 	}
+	@Override
+	public int getId() {
+		return id;
+	}
+	
+	
+	/**
+	 * Original regex based FCML parser, kept only as a reference
+	 * for {@link #main(String[])}
+	 * 
+	 * @param text text containing a single FC object
+	 * @return the parsed object
+	 */
+	private static FCObj parseFcmlRegex(String text){
+		FCObj result = new FCObj();
+		String[] tokens = text.split("[\\s(),\\[\\]]+");
+		int ntokens = tokens.length;
+		String[] typeBits = tokens[0].split("#");
+		result.setType(typeBits[0]);
+		int typeData = result.getTypeData();
+		if(Bits.readBit(typeData, TYPE_UNROTATABLE))result.z=-2;
+		if(Bits.readBit(typeData, TYPE_DESIGN))result.z=0;
+		if(typeBits.length==2){
+			if(!Bits.readBit(typeData,TYPE_DESIGN))throw new IllegalArgumentException();
+			result.z = Integer.parseInt(typeBits[1]);
+			if(result.z<0)throw new IllegalArgumentException();
+		}
+		if(typeBits.length>2)throw new IllegalArgumentException();
+		result.x = Double.parseDouble(tokens[1]);
+		result.y = Double.parseDouble(tokens[2]);
+		result.w = Double.parseDouble(tokens[3]);
+		result.h = ntokens>4?Double.parseDouble(tokens[4]):result.w;
+		if(Bits.readBit(typeData,TYPE_CIRCLE)&&!Floats.isNear(result.w, result.h))throw new IllegalArgumentException();
+		result.r = ntokens>5?Double.parseDouble(tokens[5]):0;
+		if(Bits.readBit(typeData,TYPE_UNROTATABLE)&&!Floats.isNear(result.r, 0))throw new IllegalArgumentException();
+		ArrayList<Integer> joints = new ArrayList<>();
+		for(int i=6;i<ntokens;i++){
+			String tk = tokens[i].trim();
+			if(tk.length()>0){
+				joints.add(Integer.parseInt(tk));
+			}
+		}
+		if(!Bits.readBit(typeData,TYPE_DESIGN)&&joints.size()>0)throw new IllegalArgumentException();
+		result.joints = joints.stream().mapToInt(Integer::intValue).toArray();
+		return result;
+	}
+	
+	/**
+	 * Main method, used only for testing
+	 * <br>
+	 * Checks the FCML scanner against the original regex parser
+	 * and reports the throughput of both
+	 * 
+	 * @param args ignored
+	 */
+	public static void main(String[] args){
+		java.util.Random random = new java.util.Random(36);
+		String[] types = {"SR","SC","DR","DC","BA","GA","GR#0","GC#1","WR#2","BR#3","CW#4","WoodRod#5","UW#","Wood#1#","Wood##1","Goal#2"};
+		String[] seps = {" ",", ","), (","\t","(","[","] ","  ,",""};
+		String[] nums = {"0","-200.5","1e3","40","+7","NaN","-0",".5","1.","x","0x1p3","12345678901234567890"};
+		// Equivalence on fuzzed lines
+		System.out.println("--- FCML scanner equivalence ---");
+		int mismatches = 0, accepted = 0;
+		final int nfuzz = 200000;
+		for(int i=0;i<nfuzz;i++){
+			StringBuilder sb = new StringBuilder();
+			if(random.nextInt(20)==0)sb.append(seps[random.nextInt(seps.length)]);
+			sb.append(types[random.nextInt(types.length)]);
+			int ntk = random.nextInt(10);
+			for(int j=0;j<ntk;j++){
+				sb.append(seps[random.nextInt(seps.length-1)]);
+				sb.append(nums[random.nextInt(nums.length)]);
+			}
+			if(random.nextBoolean())sb.append(seps[random.nextInt(seps.length)]);
+			String line = sb.toString();
+			String expected, actual;
+			try{
+				FCObj obj = parseFcmlRegex(line);
+				expected = obj.toString()+" z="+obj.z;
+			}catch(Exception e){
+				expected = null;
+			}
+			FCDocumentLine parsed = tryParse(line,"fcml",0);
+			if(parsed instanceof FCObj){
+				FCObj obj = (FCObj)parsed;
+				actual = obj.toString()+" z="+obj.z;
+				accepted++;
+			}else{
+				actual = null;
+			}
+			if(!Objects.equals(expected, actual)){
+				if(mismatches<10)System.out.println("Mismatch on \""+line+"\": expected "+expected+", got "+actual);
+				mismatches++;
+			}
+		}
+		System.out.println(nfuzz+" lines, "+accepted+" accepted, "+mismatches+" mismatches (expected 0)");
+		// Throughput on a generated level
+		System.out.println("--- FCML parse throughput ---");
+		final int nlines = 50000;
+		String[] lines = new String[nlines];
+		for(int i=0;i<nlines;i++){
+			lines[i] = "WoodRod#"+i+" ("+(random.nextInt(4000)-2000)+"."+random.nextInt(10)+", "
+					+(random.nextInt(2000)-1000)+"), ("+random.nextInt(400)+", 4), "+random.nextInt(360)+", ["+random.nextInt(nlines)+"]";
+		}
+		for(int round=0;round<5;round++){
+			long t0 = System.nanoTime();
+			for(String line:lines)parseFcmlRegex(line);
+			long t1 = System.nanoTime();
+			for(String line:lines)tryParse(line,"fcml",0);
+			long t2 = System.nanoTime();
+			System.out.println("round "+round+": regex "+(t1-t0)/nlines+" ns/line, scanner "+(t2-t1)/nlines+" ns/line");
+		}
+	}
 	
 }
@@ -0,0 +1,873 @@
+package com.komiamiko.fcorbit.document;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.komiamiko.fcorbit.Bits;
+
+/**
+ * Column-oriented copy of the FC objects in a document,
+ * for scanning many objects without visiting each one
+ * <br>
+ * Each FC object is a row, rows are in document order.
+ * Geometry, type and z are kept in parallel primitive arrays,
+ * joints are kept in compressed sparse row form: the joints of
+ * row i are {@code jointData[jointStart[i]]} up to
+ * {@code jointData[jointStart[i+1]]}, exclusive
+ * <br>
+ * The document stays the source of truth. After the document
+ * changes, call {@link #rebuild(List)}; if only some lines were replaced,
+ * {@link #splice(List, int, int, int)} is enough, and if only the geometry
+ * of some objects changed, {@link #refreshLines(List, BitSet)} is enough.
+ * Arrays are reused between rebuilds, and only the first {@link #size}
+ * entries are meaningful.
+ * <br>
+ * Design pieces are also indexed by their design index ({@link FCObj#z}),
+ * which is what joints refer to, so resolving a joint, finding dangling
+ * joints and finding the pieces jointed to a given piece all cost
+ * O(joints) rather than a scan over every object.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public class FCObjStore {
+
+	/**
+	 * Number of rows
+	 */
+	public int size;
+	/**
+	 * Object for each row
+	 */
+	public FCObj[] objs = new FCObj[0];
+	/**
+	 * Line number for each row
+	 */
+	public int[] line = new int[0];
+	/**
+	 * Z value for each row
+	 */
+	public int[] z = new int[0];
+	/**
+	 * Type flags for each row, see {@link FCType#typeData}
+	 */
+	public int[] typeData = new int[0];
+	/**
+	 * Type for each row
+	 */
+	public FCType[] types = new FCType[0];
+	/**
+	 * Geometry for each row
+	 */
+	public double[] x = new double[0], y = new double[0], w = new double[0], h = new double[0], r = new double[0];
+	/**
+	 * Half width and half height of the axis aligned bounds of each row,
+	 * with its rotation, centered on its position
+	 */
+	public double[] extentX = new double[0], extentY = new double[0];
+	/**
+	 * Start of each row's joints in {@link #jointData}, has {@link #size}+1 entries
+	 */
+	public int[] jointStart = new int[1];
+	/**
+	 * All joints, row after row
+	 */
+	public int[] jointData = new int[0];
+	/**
+	 * Number of times {@link #rebuild(List)} was called or a
+	 * {@link #splice(List, int, int, int)} moved rows or changed design pieces,
+	 * anything derived from the joints is stale once this changes
+	 */
+	public int rebuildCount;
+	/**
+	 * Number of times {@link #rebuild(List)} or {@link #splice(List, int, int, int)}
+	 * was called, the objects and lines of the rows may differ once this changes
+	 */
+	public int modCount;
+	/**
+	 * Row for each line, or -1 if the line is not an FC object
+	 */
+	private int[] rowOfLine = new int[0];
+	private int lineCount;
+	/**
+	 * Rows sorted by z, computed when needed
+	 */
+	private int[] zOrder;
+	/**
+	 * Hash table from design index to id, open addressing with linear probing,
+	 * {@link #zIds} is -1 for empty slots
+	 */
+	private int[] zKeys = new int[0], zIds = new int[0];
+	private int zShift;
+	/**
+	 * Number of distinct design indices seen, as objects or as joints
+	 */
+	private int idCount;
+	/**
+	 * Row for each id, or -1 if no object has that design index
+	 */
+	private int[] rowOfId = new int[0];
+	/**
+	 * Rows which have a joint to each id, the rows for id i are
+	 * {@code refRows[refStart[i]]} up to {@code refRows[refStart[i+1]]}, exclusive
+	 */
+	private int[] refStart = new int[1], refRows = new int[0];
+	/**
+	 * Do the design index and the joint referrer lists need to be built again
+	 * before they are used?
+	 */
+	private boolean designIndexStale;
+
+	/**
+	 * Replace the contents with the FC objects in a document
+	 *
+	 * @param doc lines of the document, in order
+	 */
+	public void rebuild(List<? extends FCDocumentLine> doc){
+		int n = doc.size();
+		int rows = 0, njoints = 0;
+		for(FCDocumentLine line:doc){
+			if(line instanceof FCObj){
+				rows++;
+				njoints += ((FCObj)line).joints.length;
+			}
+		}
+		ensureCapacity(rows, njoints, n);
+		int row = 0, joint = 0, i = 0;
+		for(FCDocumentLine docLine:doc){
+			if(docLine instanceof FCObj){
+				FCObj obj = (FCObj)docLine;
+				objs[row] = obj;
+				line[row] = i;
+				z[row] = obj.z;
+				types[row] = obj.fcType;
+				typeData[row] = obj.fcType.typeData;
+				x[row] = obj.x;
+				y[row] = obj.y;
+				w[row] = obj.w;
+				h[row] = obj.h;
+				r[row] = obj.r;
+				computeExtents(row);
+				int[] joints = obj.joints;
+				System.arraycopy(joints, 0, jointData, joint, joints.length);
+				joint += joints.length;
+				jointStart[row+1] = joint;
+				rowOfLine[i] = row;
+				row++;
+			}else{
+				rowOfLine[i] = -1;
+			}
+			i++;
+		}
+		// drop references so removed objects can be collected
+		if(rows<size){
+			Arrays.fill(objs, rows, size, null);
+			Arrays.fill(types, rows, size, null);
+		}
+		size = rows;
+		lineCount = n;
+		zOrder = null;
+		buildDesignIndex(njoints);
+		rebuildCount++;
+		modCount++;
+	}
+
+	/**
+	 * Take a document where a range of lines was replaced,
+	 * reading only the new lines
+	 * <br>
+	 * Rows after the range are shifted and the z order is patched by merging
+	 * in the new rows, so the cost is the size of the edit plus a few
+	 * array copies, not a walk over the document.
+	 * The design index is shifted as well, unless the replaced rows
+	 * had different design indices or joints, then it is built again
+	 * from the columns the next time it is used, which painting never does.
+	 * If the arrays are too small, everything is rebuilt.
+	 *
+	 * @param doc the document after the change
+	 * @param first index of the first replaced line
+	 * @param removed number of lines that were replaced
+	 * @param added number of lines put in their place
+	 */
+	public void splice(List<? extends FCDocumentLine> doc,int first,int removed,int added){
+		if(first+removed>lineCount||doc.size()!=lineCount-removed+added){
+			rebuild(doc);
+			return;
+		}
+		FCObj[] fresh = new FCObj[added];
+		int[] freshLine = new int[added];
+		int newRows = 0, newJoints = 0;
+		for(int i=first;i<first+added;i++){
+			FCDocumentLine docLine = doc.get(i);
+			if(docLine instanceof FCObj){
+				FCObj obj = (FCObj)docLine;
+				freshLine[newRows] = i;
+				fresh[newRows++] = obj;
+				newJoints += obj.joints.length;
+			}
+		}
+		int rowStart = rowAtOrAfter(first), rowEnd = rowAtOrAfter(first+removed);
+		int jointFrom = jointStart[rowStart], jointTo = jointStart[rowEnd], njoints = jointStart[size];
+		int rowDelta = newRows-(rowEnd-rowStart), jointDelta = newJoints-(jointTo-jointFrom), lineDelta = added-removed;
+		if(objs.length<size+rowDelta||jointData.length<njoints+jointDelta||rowOfLine.length<lineCount+lineDelta){
+			rebuild(doc);
+			return;
+		}
+		boolean sameDesign = sameDesign(rowStart, rowEnd, fresh, newRows);
+		// shift the rows after
+		int tail = size-rowEnd, to = rowEnd+rowDelta;
+		System.arraycopy(objs, rowEnd, objs, to, tail);
+		System.arraycopy(line, rowEnd, line, to, tail);
+		System.arraycopy(z, rowEnd, z, to, tail);
+		System.arraycopy(typeData, rowEnd, typeData, to, tail);
+		System.arraycopy(types, rowEnd, types, to, tail);
+		System.arraycopy(x, rowEnd, x, to, tail);
+		System.arraycopy(y, rowEnd, y, to, tail);
+		System.arraycopy(w, rowEnd, w, to, tail);
+		System.arraycopy(h, rowEnd, h, to, tail);
+		System.arraycopy(r, rowEnd, r, to, tail);
+		System.arraycopy(extentX, rowEnd, extentX, to, tail);
+		System.arraycopy(extentY, rowEnd, extentY, to, tail);
+		System.arraycopy(jointStart, rowEnd+1, jointStart, to+1, tail);
+		System.arraycopy(jointData, jointTo, jointData, jointTo+jointDelta, njoints-jointTo);
+		for(int row=to;row<to+tail;row++){
+			line[row] += lineDelta;
+			jointStart[row+1] += jointDelta;
+		}
+		System.arraycopy(rowOfLine, first+removed, rowOfLine, first+added, lineCount-first-removed);
+		for(int i=first+added;i<lineCount+lineDelta;i++){
+			if(rowOfLine[i]>=0)rowOfLine[i] += rowDelta;
+		}
+		// fill in the new rows
+		int row = rowStart, joint = jointFrom;
+		for(int i=0;i<added;i++){
+			rowOfLine[first+i] = -1;
+		}
+		for(int k=0;k<newRows;k++){
+			FCObj obj = fresh[k];
+			int i = freshLine[k];
+			objs[row] = obj;
+			line[row] = i;
+			z[row] = obj.z;
+			types[row] = obj.fcType;
+			typeData[row] = obj.fcType.typeData;
+			x[row] = obj.x;
+			y[row] = obj.y;
+			w[row] = obj.w;
+			h[row] = obj.h;
+			r[row] = obj.r;
+			computeExtents(row);
+			int[] joints = obj.joints;
+			System.arraycopy(joints, 0, jointData, joint, joints.length);
+			joint += joints.length;
+			jointStart[row+1] = joint;
+			rowOfLine[i] = row;
+			row++;
+		}
+		// drop references so removed objects can be collected
+		if(rowDelta<0){
+			Arrays.fill(objs, size+rowDelta, size, null);
+			Arrays.fill(types, size+rowDelta, size, null);
+		}
+		size += rowDelta;
+		lineCount += lineDelta;
+		if(zOrder!=null)zOrder = spliceZOrder(rowStart, rowEnd, newRows);
+		if(!sameDesign){
+			designIndexStale = true;
+		}else if(rowDelta!=0&&!designIndexStale){
+			shiftDesignIndex(rowEnd, rowDelta);
+		}
+		if(rowDelta!=0||!sameDesign)rebuildCount++;
+		modCount++;
+	}
+
+	/**
+	 * Index of the first row whose line is at or after a line
+	 */
+	private int rowAtOrAfter(int lineNumber){
+		int lo = 0, hi = size;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(line[mid]<lineNumber){
+				lo = mid+1;
+			}else{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Would replacing some rows with some objects leave the design index
+	 * and the joint referrers the same, apart from row numbers?
+	 * True if neither side has design pieces or joints,
+	 * or if each new object has the design index and joints of the row it replaces.
+	 */
+	private boolean sameDesign(int rowStart,int rowEnd,FCObj[] fresh,int newRows){
+		boolean oldDesign = false, newDesign = false;
+		for(int row=rowStart;row<rowEnd;row++){
+			oldDesign |= z[row]>=0||jointStart[row+1]>jointStart[row];
+		}
+		for(int k=0;k<newRows;k++){
+			newDesign |= fresh[k].z>=0||fresh[k].joints.length>0;
+		}
+		if(!oldDesign&&!newDesign)return true;
+		if(rowEnd-rowStart!=newRows)return false;
+		for(int k=0;k<newRows;k++){
+			int row = rowStart+k;
+			if(z[row]!=fresh[k].z)return false;
+			if(!Arrays.equals(jointData, jointStart[row], jointStart[row+1], fresh[k].joints, 0, fresh[k].joints.length))return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Move the rows in the design index which were at or after a row,
+	 * when no design pieces or joints were added or removed
+	 */
+	private void shiftDesignIndex(int fromRow,int rowDelta){
+		for(int id=0;id<idCount;id++){
+			if(rowOfId[id]>=fromRow)rowOfId[id] += rowDelta;
+		}
+		for(int i=0,n=refStart[idCount];i<n;i++){
+			if(refRows[i]>=fromRow)refRows[i] += rowDelta;
+		}
+	}
+
+	/**
+	 * Patch the cached z order after rows [rowStart, rowEnd) were replaced
+	 * by newRows rows starting at rowStart, by dropping the old rows,
+	 * shifting the rows after, and merging in the new rows
+	 */
+	private int[] spliceZOrder(int rowStart,int rowEnd,int newRows){
+		int rowDelta = newRows-(rowEnd-rowStart);
+		long[] keys = new long[newRows];
+		for(int k=0;k<newRows;k++){
+			keys[k] = ((long)z[rowStart+k]<<32)|(rowStart+k);
+		}
+		Arrays.sort(keys);
+		int[] order = new int[size];
+		int n = 0, k = 0;
+		for(int old:zOrder){
+			if(old>=rowStart&&old<rowEnd)continue;
+			int row = old>=rowEnd?old+rowDelta:old;
+			long key = ((long)z[row]<<32)|row;
+			while(k<newRows&&keys[k]<key){
+				order[n++] = (int)keys[k++];
+			}
+			order[n++] = row;
+		}
+		while(k<newRows){
+			order[n++] = (int)keys[k++];
+		}
+		return order;
+	}
+
+	/**
+	 * Build the design index table and the joint referrer lists
+	 *
+	 * @param njoints total number of joints
+	 */
+	private void buildDesignIndex(int njoints){
+		designIndexStale = false;
+		int rows = size;
+		// at most one id per row and one per joint, keep the table at most half full
+		int maxIds = rows+njoints;
+		int bits = 32-Integer.numberOfLeadingZeros(Math.max(8, maxIds*2)-1);
+		if(zKeys.length!=1<<bits){
+			zKeys = new int[1<<bits];
+			zIds = new int[1<<bits];
+		}
+		Arrays.fill(zIds, -1);
+		zShift = 32-bits;
+		if(rowOfId.length<maxIds){
+			rowOfId = new int[maxIds];
+			refStart = new int[maxIds+1];
+		}
+		if(refRows.length<njoints){
+			refRows = new int[njoints];
+		}
+		idCount = 0;
+		for(int row=0;row<rows;row++){
+			if(z[row]>=0){
+				int id = internZ(z[row]);
+				// with duplicate design indices, the first one wins
+				if(rowOfId[id]<0)rowOfId[id] = row;
+			}
+		}
+		// count referrers, shifted by one so the prefix sum lands in place
+		Arrays.fill(refStart, 0, maxIds+1, 0);
+		for(int j=0;j<njoints;j++){
+			refStart[internZ(jointData[j])+1]++;
+		}
+		for(int i=0;i<idCount;i++){
+			refStart[i+1] += refStart[i];
+		}
+		// fill, each id's next free position starts at its start
+		int[] fill = Arrays.copyOf(refStart, idCount);
+		for(int row=0;row<rows;row++){
+			for(int j=jointStart[row];j<jointStart[row+1];j++){
+				refRows[fill[findZ(jointData[j])]++] = row;
+			}
+		}
+	}
+
+	/**
+	 * Build the design index again if a splice left it stale
+	 */
+	private void ensureDesignIndex(){
+		if(designIndexStale)buildDesignIndex(jointStart[size]);
+	}
+
+	/**
+	 * Find the id for a design index, adding it if it is new
+	 */
+	private int internZ(int key){
+		int mask = zKeys.length-1;
+		for(int slot=(key*0x9e3779b9)>>>zShift;;slot=(slot+1)&mask){
+			int id = zIds[slot];
+			if(id<0){
+				zKeys[slot] = key;
+				zIds[slot] = id = idCount++;
+				rowOfId[id] = -1;
+				return id;
+			}
+			if(zKeys[slot]==key)return id;
+		}
+	}
+
+	/**
+	 * Find the id for a design index
+	 *
+	 * @return the id, or -1 if it was never seen
+	 */
+	private int findZ(int key){
+		if(idCount==0)return -1;
+		int mask = zKeys.length-1;
+		for(int slot=(key*0x9e3779b9)>>>zShift;;slot=(slot+1)&mask){
+			int id = zIds[slot];
+			if(id<0)return -1;
+			if(zKeys[slot]==key)return id;
+		}
+	}
+
+	private void ensureCapacity(int rows, int njoints, int lines){
+		if(objs.length<rows){
+			int cap = Math.max(rows, objs.length*3/2);
+			objs = Arrays.copyOf(objs, cap);
+			line = new int[cap];
+			z = new int[cap];
+			typeData = new int[cap];
+			types = Arrays.copyOf(types, cap);
+			x = new double[cap];
+			y = new double[cap];
+			w = new double[cap];
+			h = new double[cap];
+			r = new double[cap];
+			extentX = new double[cap];
+			extentY = new double[cap];
+			jointStart = new int[cap+1];
+		}
+		if(jointData.length<njoints){
+			jointData = new int[Math.max(njoints, jointData.length*3/2)];
+		}
+		if(rowOfLine.length<lines){
+			rowOfLine = new int[Math.max(lines, rowOfLine.length*3/2)];
+		}
+	}
+
+	/**
+	 * Get the row for a line
+	 *
+	 * @param line line number
+	 * @return the row, or -1 if the line is not an FC object
+	 */
+	public int rowOf(int line){
+		return line>=0&&line<lineCount?rowOfLine[line]:-1;
+	}
+
+	/**
+	 * Re-read the geometry of one row from its object
+	 *
+	 * @param row the row
+	 */
+	public void refresh(int row){
+		FCObj obj = objs[row];
+		x[row] = obj.x;
+		y[row] = obj.y;
+		w[row] = obj.w;
+		h[row] = obj.h;
+		r[row] = obj.r;
+		computeExtents(row);
+	}
+
+	/**
+	 * Find the axis aligned bounds of a row from its geometry,
+	 * circles are treated like their bounding square
+	 */
+	private void computeExtents(int row){
+		final double a = Math.toRadians(r[row]),
+				ca = Math.abs(Math.cos(a)),
+				sa = Math.abs(Math.sin(a)),
+				rx = Math.abs(w[row]*0.5),
+				ry = Math.abs(h[row]*0.5);
+		extentX[row] = rx*ca+ry*sa;
+		extentY[row] = rx*sa+ry*ca;
+	}
+
+	/**
+	 * Take the objects in a set of lines from a document with the
+	 * same lines as before, where only their geometry may have changed
+	 *
+	 * @see #refresh(int)
+	 *
+	 * @param doc the document
+	 * @param lines set of line numbers
+	 */
+	public void refreshLines(List<? extends FCDocumentLine> doc,BitSet lines){
+		for(int i = lines.nextSetBit(0); i >= 0 && i < lineCount; i = lines.nextSetBit(i+1)) {
+			int row = rowOfLine[i];
+			if(row>=0){
+				objs[row] = (FCObj)doc.get(i);
+				refresh(row);
+			}
+		}
+	}
+
+	/**
+	 * Get the rows sorted by z, ties in document order,
+	 * which is the same order as sorting by {@link FCObj#Z_COMPARE}
+	 * <br>
+	 * The result is cached until the next rebuild and must not be modified
+	 *
+	 * @return array of {@link #size} rows
+	 */
+	public int[] zOrder(){
+		if(zOrder==null){
+			int n = size;
+			long[] keys = new long[n];
+			for(int i=0;i<n;i++){
+				keys[i] = ((long)z[i]<<32)|i;
+			}
+			Arrays.sort(keys);
+			int[] order = new int[n];
+			for(int i=0;i<n;i++){
+				order[i] = (int)keys[i];
+			}
+			zOrder = order;
+		}
+		return zOrder;
+	}
+
+	/**
+	 * Number of joints a row has
+	 *
+	 * @param row the row
+	 * @return number of joints
+	 */
+	public int jointCount(int row){
+		return jointStart[row+1]-jointStart[row];
+	}
+
+	/**
+	 * Get the row of the design piece with a design index
+	 *
+	 * @param z design index
+	 * @return the row, or -1 if there is no such piece
+	 */
+	public int rowOfZ(int z){
+		ensureDesignIndex();
+		int id = findZ(z);
+		return id<0?-1:rowOfId[id];
+	}
+
+	/**
+	 * Get the design piece that a joint refers to
+	 *
+	 * @param z design index, as found in {@link FCObj#joints}
+	 * @return the piece, or null if the joint is dangling
+	 */
+	public FCObj resolveJoint(int z){
+		int row = rowOfZ(z);
+		return row<0?null:objs[row];
+	}
+
+	/**
+	 * Get the rows which have a joint to a design index,
+	 * a row is listed once for each such joint
+	 *
+	 * @param z design index
+	 * @return the rows, in order
+	 */
+	public int[] referrers(int z){
+		ensureDesignIndex();
+		int id = findZ(z);
+		if(id<0)return new int[0];
+		return Arrays.copyOfRange(refRows, refStart[id], refStart[id+1]);
+	}
+
+	/**
+	 * Count the joints to a design index
+	 *
+	 * @param z design index
+	 * @return number of joints
+	 */
+	public int referrerCount(int z){
+		ensureDesignIndex();
+		int id = findZ(z);
+		return id<0?0:refStart[id+1]-refStart[id];
+	}
+
+	/**
+	 * Find joints which refer to a design index no piece has
+	 *
+	 * @return positions in {@link #jointData}, in order,
+	 * use {@link #jointOwner(int)} to get the row
+	 */
+	public int[] danglingJoints(){
+		ensureDesignIndex();
+		int njoints = jointStart[size];
+		int[] result = new int[0];
+		int count = 0;
+		for(int j=0;j<njoints;j++){
+			if(rowOfId[findZ(jointData[j])]<0){
+				if(count==result.length)result = Arrays.copyOf(result, Math.max(4, count*2));
+				result[count++] = j;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Get the row which has a joint
+	 *
+	 * @param position position in {@link #jointData}
+	 * @return the row
+	 */
+	public int jointOwner(int position){
+		// last row whose joints start at or before the position
+		int lo = 0, hi = size-1;
+		while(lo<hi){
+			int mid = (lo+hi+1)>>>1;
+			if(jointStart[mid]<=position){
+				lo = mid;
+			}else{
+				hi = mid-1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Same as {@link FCObj#contains(double, double)} for a row
+	 *
+	 * @param row the row
+	 * @param px
+	 * @param py
+	 * @return
+	 */
+	public boolean contains(int row,double px,double py){
+		if(Bits.readBit(typeData[row], FCObj.TYPE_CIRCLE)){
+			return Math.hypot(x[row]-px, y[row]-py)<=Math.abs(w[row]*0.5);
+		}else{
+			final double rx = Math.abs(w[row]*0.5),
+					ry = Math.abs(h[row]*0.5),
+					a = -Math.toRadians(r[row]),// Invert rotation
+					ca = Math.cos(a),
+					sa = Math.sin(a);
+			px -= x[row];
+			py -= y[row];
+			final double nx = px*ca-py*sa;
+			py = px*sa+py*ca;
+			px = nx;
+			return -rx<=px&&px<=rx && -ry<=py&&py<=ry;
+		}
+	}
+
+	/**
+	 * Does a row intersect an unrotated rectangle?
+	 * <br>
+	 * Same as {@link FCObj#intersects(FCObj)} called on
+	 * an empty object with zero rotation, negative size is allowed
+	 *
+	 * @param row the row
+	 * @param cx center x of the rectangle
+	 * @param cy center y of the rectangle
+	 * @param cw width of the rectangle
+	 * @param ch height of the rectangle
+	 * @return
+	 */
+	public boolean intersectsRect(int row,double cx,double cy,double cw,double ch){
+		final double crx = Math.abs(cw*0.5),
+				cry = Math.abs(ch*0.5);
+		if(Bits.readBit(typeData[row], FCObj.TYPE_CIRCLE)){
+			final double pr = Math.abs(w[row]*0.5),
+					px = Math.abs(x[row]-cx),
+					py = Math.abs(y[row]-cy);
+			if(px>crx+pr||py>cry+pr)return false;
+			if(px<=crx||py<=cry)return true;
+			return Math.hypot(px-crx, py-cry)<=pr;
+		}
+		// separating axis test, axes of the rectangle first
+		final double a = Math.toRadians(r[row]),
+				ca = Math.cos(a),
+				sa = Math.sin(a),
+				rx = w[row]*0.5,
+				ry = h[row]*0.5,
+				ox = x[row]-cx,
+				oy = y[row]-cy;
+		// half extents of the row projected onto the x and y axes
+		final double ex = Math.abs(rx*ca)+Math.abs(ry*sa),
+				ey = Math.abs(rx*sa)+Math.abs(ry*ca);
+		if(Math.abs(ox)>crx+ex||Math.abs(oy)>cry+ey)return false;
+		// then axes of the row
+		final double pu = Math.abs(ox*ca+oy*sa),
+				pv = Math.abs(oy*ca-ox*sa),
+				eu = crx*Math.abs(ca)+cry*Math.abs(sa),
+				ev = crx*Math.abs(sa)+cry*Math.abs(ca);
+		return pu<=Math.abs(rx)+eu&&pv<=Math.abs(ry)+ev;
+	}
+
+	/**
+	 * Make a random comment or FC object, for testing
+	 */
+	private static FCDocumentLine randomLine(java.util.Random random,FCType[] allTypes,int lineNumber){
+		if(random.nextInt(8)==0){
+			return new CommentLine("# comment", lineNumber);
+		}
+		FCObj obj = new FCObj();
+		obj.fcType = allTypes[1+random.nextInt(allTypes.length-1)];
+		obj.type = obj.fcType.name;
+		obj.z = random.nextInt(50)-2;
+		obj.x = random.nextGaussian()*500;
+		obj.y = random.nextGaussian()*500;
+		obj.w = random.nextGaussian()*100;
+		obj.h = Bits.readBit(obj.getTypeData(), FCObj.TYPE_CIRCLE)?obj.w:random.nextGaussian()*100;
+		obj.r = random.nextDouble()*360;
+		obj.joints = new int[random.nextInt(3)];
+		for(int j=0;j<obj.joints.length;j++)obj.joints[j] = random.nextInt(60)-2;
+		obj.setLineNumber(lineNumber, 0);
+		return obj;
+	}
+
+	/**
+	 * Do two stores hold the same rows, z order and design index? For testing
+	 */
+	private boolean sameAs(FCObjStore o,int lines){
+		if(size!=o.size||lineCount!=o.lineCount)return false;
+		for(int row=0;row<size;row++){
+			if(objs[row]!=o.objs[row]||line[row]!=o.line[row]||z[row]!=o.z[row]||types[row]!=o.types[row]
+					||typeData[row]!=o.typeData[row]||extentX[row]!=o.extentX[row]||extentY[row]!=o.extentY[row]
+					||jointStart[row+1]!=o.jointStart[row+1])return false;
+		}
+		if(!Arrays.equals(jointData, 0, jointStart[size], o.jointData, 0, o.jointStart[size]))return false;
+		for(int i=-1;i<=lines;i++){
+			if(rowOf(i)!=o.rowOf(i))return false;
+		}
+		if(!Arrays.equals(zOrder(), o.zOrder()))return false;
+		for(int zq=-3;zq<70;zq++){
+			if(rowOfZ(zq)!=o.rowOfZ(zq)||!Arrays.equals(referrers(zq), o.referrers(zq)))return false;
+		}
+		return Arrays.equals(danglingJoints(), o.danglingJoints());
+	}
+
+	/**
+	 * Main method, used only for testing
+	 * <br>
+	 * Checks the columns against the objects they came from
+	 * 
+	 * @param args ignored
+	 */
+	public static void main(String[] args){
+		java.util.Random random = new java.util.Random(9);
+		FCType[] allTypes = FCType.values();
+		java.util.ArrayList<FCDocumentLine> doc = new java.util.ArrayList<>();
+		for(int i=0;i<20000;i++){
+			doc.add(randomLine(random, allTypes, i));
+		}
+		FCObjStore store = new FCObjStore();
+		store.rebuild(doc);
+		int mismatches = 0;
+		// splices, checked against a rebuild
+		FCObjStore spliced = new FCObjStore();
+		java.util.ArrayList<FCDocumentLine> small = new java.util.ArrayList<>(doc.subList(0, 300));
+		spliced.rebuild(small);
+		for(int t=0;t<2000;t++){
+			int first = random.nextInt(small.size()+1), removed = Math.min(small.size()-first, random.nextInt(4));
+			java.util.ArrayList<FCDocumentLine> lines = new java.util.ArrayList<>();
+			int added = random.nextInt(4);
+			for(int i=0;i<added;i++){
+				FCDocumentLine line = randomLine(random, allTypes, first+i);
+				// sometimes only the geometry changes, as when typing a number
+				if(i<removed&&random.nextBoolean()&&line instanceof FCObj&&small.get(first+i) instanceof FCObj){
+					FCObj old = (FCObj)small.get(first+i);
+					((FCObj)line).z = old.z;
+					((FCObj)line).joints = old.joints.clone();
+				}
+				lines.add(line);
+			}
+			small.subList(first, first+removed).clear();
+			small.addAll(first, lines);
+			if(random.nextBoolean())spliced.zOrder();
+			spliced.splice(small, first, removed, added);
+			FCObjStore expected = new FCObjStore();
+			expected.rebuild(small);
+			if(!spliced.sameAs(expected, small.size()))mismatches++;
+		}
+		// z order
+		java.util.ArrayList<FCObj> sorted = new java.util.ArrayList<>();
+		for(FCDocumentLine line:doc)if(line instanceof FCObj)sorted.add((FCObj)line);
+		sorted.sort(FCObj.Z_COMPARE);
+		int[] order = store.zOrder();
+		for(int i=0;i<order.length;i++){
+			if(store.objs[order[i]]!=sorted.get(i))mismatches++;
+		}
+		// hit tests
+		FCObj dummy = new FCObj();
+		dummy.setType("Empty");
+		for(int t=0;t<200;t++){
+			double px = random.nextGaussian()*500, py = random.nextGaussian()*500;
+			dummy.x = px;
+			dummy.y = py;
+			dummy.w = random.nextGaussian()*200;
+			dummy.h = random.nextGaussian()*200;
+			for(int row=0;row<store.size;row++){
+				FCObj obj = store.objs[row];
+				if(obj!=doc.get(store.line[row])||store.rowOf(store.line[row])!=row)mismatches++;
+				if(store.contains(row,px,py)!=obj.contains(px,py))mismatches++;
+				if(store.intersectsRect(row,dummy.x,dummy.y,dummy.w,dummy.h)!=dummy.intersects(obj))mismatches++;
+				if(store.contains(row,px,py)&&(Math.abs(px-store.x[row])>store.extentX[row]+1e-9||Math.abs(py-store.y[row])>store.extentY[row]+1e-9))mismatches++;
+			}
+		}
+		// design index
+		for(int zq=-3;zq<70;zq++){
+			int expectedRow = -1, expectedRefs = 0;
+			for(int row=0;row<store.size;row++){
+				if(expectedRow<0&&store.z[row]==zq&&zq>=0)expectedRow = row;
+				for(int joint:store.objs[row].joints)if(joint==zq)expectedRefs++;
+			}
+			if(store.rowOfZ(zq)!=expectedRow)mismatches++;
+			if(store.referrerCount(zq)!=expectedRefs||store.referrers(zq).length!=expectedRefs)mismatches++;
+			for(int row:store.referrers(zq)){
+				boolean found = false;
+				for(int joint:store.objs[row].joints)found |= joint==zq;
+				if(!found)mismatches++;
+			}
+		}
+		int dangling = 0;
+		for(int row=0;row<store.size;row++){
+			for(int joint:store.objs[row].joints)if(store.rowOfZ(joint)<0)dangling++;
+		}
+		int[] danglingJoints = store.danglingJoints();
+		if(danglingJoints.length!=dangling)mismatches++;
+		for(int position:danglingJoints){
+			int row = store.jointOwner(position);
+			if(position<store.jointStart[row]||position>=store.jointStart[row+1])mismatches++;
+		}
+		System.out.println("--- FC object store ---");
+		System.out.println("splices checked against rebuilds, "+spliced.size+" rows left");
+		System.out.println(store.size+" rows, "+store.jointStart[store.size]+" joints, "+mismatches+" mismatches (expected 0)");
+	}
+
+}
@@ -0,0 +1,358 @@
+package com.komiamiko.fcorbit.document;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A set of selected lines, remembered by their ids
+ * <br>
+ * Since ids do not change when other lines are inserted or deleted,
+ * the selection needs no work when text elsewhere is edited,
+ * and it stays valid across reparses which keep the ids.
+ * It is only turned into line numbers when something needs them,
+ * see {@link #toLines(FCObjStore)}.
+ * <br>
+ * Ids of lines which are no longer in the document may stay in the set
+ * until the next time it is turned into line numbers,
+ * so {@link #size()} is only exact right after that.
+ * <br>
+ * The line numbers are cached until the selection or the store changes,
+ * so asking for them again, such as on every mouse move while dragging, is cheap.
+ * <br>
+ * The ids are kept in a hash set, so the memory and time used depend on
+ * how many lines are selected, not on how many ids were ever given out.
+ * Ids wrap around after 2<sup>32</sup> lines have been made, after which
+ * a new line may get the id of an old one. If the old line is still in the
+ * document and selected, the new line is then selected as well.
+ *
+ * @author komiamiko
+ * @version 1.0
+ * @see FCDocumentLine#getId()
+ */
+public class FCSelection {
+
+	/**
+	 * Starting size of the table, a power of 2
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+	/**
+	 * Marks an unused slot in the table
+	 */
+	private static final int FREE = -1;
+
+	/**
+	 * Ids of the selected lines, open addressing with linear probing,
+	 * at most half full
+	 */
+	private int[] table = newTable(INITIAL_CAPACITY);
+	/**
+	 * Number of ids in the set, including {@link #FREE}
+	 */
+	private int count;
+	/**
+	 * Is the id equal to {@link #FREE} in the set?
+	 * It can not be stored in the table.
+	 */
+	private boolean hasFree;
+	/**
+	 * Number of changes to the set, for the cache
+	 */
+	private int modCount;
+	/**
+	 * Result of the last {@link #toLines(FCObjStore)}, valid while the store is
+	 * the same one with the same {@link FCObjStore#modCount} and the set has
+	 * the same {@link #modCount}
+	 */
+	private BitSet cachedLines;
+	private FCObjStore cachedStore;
+	private int cachedStoreMod, cachedMod;
+
+	private static int[] newTable(int capacity){
+		int[] result = new int[capacity];
+		Arrays.fill(result, FREE);
+		return result;
+	}
+
+	/**
+	 * Slot an id would go in if there were no collisions
+	 */
+	private static int home(int id,int mask){
+		return (id*0x9E3779B9>>>16)&mask;
+	}
+
+	/**
+	 * Find the slot holding an id, or the free slot where it would go
+	 */
+	private int slot(int id){
+		int mask = table.length-1;
+		int i = home(id, mask);
+		while(table[i]!=FREE&&table[i]!=id)i = (i+1)&mask;
+		return i;
+	}
+
+	private boolean containsId(int id){
+		if(id==FREE)return hasFree;
+		return table[slot(id)]==id;
+	}
+
+	private void addId(int id){
+		if(id==FREE){
+			if(!hasFree){
+				count++;
+				modCount++;
+			}
+			hasFree = true;
+			return;
+		}
+		int i = slot(id);
+		if(table[i]==id)return;
+		table[i] = id;
+		count++;
+		modCount++;
+		if(count*2>table.length)resize(table.length*2);
+	}
+
+	private void removeId(int id){
+		if(id==FREE){
+			if(hasFree){
+				count--;
+				modCount++;
+			}
+			hasFree = false;
+			return;
+		}
+		int i = slot(id);
+		if(table[i]!=id)return;
+		// shift later ids back so every id stays reachable from its home slot
+		int mask = table.length-1;
+		int gap = i;
+		for(int j=(i+1)&mask;table[j]!=FREE;j=(j+1)&mask){
+			if(((j-home(table[j], mask))&mask)>=((j-gap)&mask)){
+				table[gap] = table[j];
+				gap = j;
+			}
+		}
+		table[gap] = FREE;
+		count--;
+		modCount++;
+	}
+
+	private void resize(int capacity){
+		int[] old = table;
+		table = newTable(capacity);
+		for(int id:old){
+			if(id!=FREE)table[slot(id)] = id;
+		}
+	}
+
+	/**
+	 * Is the line selected?
+	 *
+	 * @param line the line
+	 * @return true if it is selected
+	 */
+	public boolean contains(FCDocumentLine line){
+		return containsId(line.getId());
+	}
+
+	/**
+	 * Select a line
+	 *
+	 * @param line the line
+	 */
+	public void add(FCDocumentLine line){
+		addId(line.getId());
+	}
+
+	/**
+	 * Deselect a line
+	 *
+	 * @param line the line
+	 */
+	public void remove(FCDocumentLine line){
+		removeId(line.getId());
+	}
+
+	/**
+	 * Select a line if it is not selected, otherwise deselect it
+	 *
+	 * @param line the line
+	 */
+	public void flip(FCDocumentLine line){
+		int id = line.getId();
+		if(containsId(id))removeId(id);
+		else addId(id);
+	}
+
+	/**
+	 * Deselect everything
+	 */
+	public void clear(){
+		if(count==0)return;
+		if(table.length>INITIAL_CAPACITY)table = newTable(INITIAL_CAPACITY);
+		else Arrays.fill(table, FREE);
+		count = 0;
+		hasFree = false;
+		modCount++;
+	}
+
+	/**
+	 * Replace this selection with a copy of another
+	 *
+	 * @param other the selection to copy
+	 */
+	public void copyFrom(FCSelection other){
+		if(other==this)return;
+		table = other.table.clone();
+		count = other.count;
+		hasFree = other.hasFree;
+		modCount++;
+	}
+
+	/**
+	 * Is nothing selected?
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty(){
+		return count==0;
+	}
+
+	/**
+	 * Number of selected lines
+	 *
+	 * @return the number of ids in the set
+	 */
+	public int size(){
+		return count;
+	}
+
+	/**
+	 * Find the line numbers of the selected FC objects,
+	 * and forget any ids which are no longer in the document
+	 *
+	 * @param store columns of the current document
+	 * @return a new set of line numbers
+	 */
+	public BitSet toLines(FCObjStore store){
+		if(cachedLines!=null&&cachedStore==store&&cachedStoreMod==store.modCount&&cachedMod==modCount){
+			return (BitSet)cachedLines.clone();
+		}
+		BitSet lines = findLines(store);
+		cachedLines = (BitSet)lines.clone();
+		cachedStore = store;
+		cachedStoreMod = store.modCount;
+		cachedMod = modCount;
+		return lines;
+	}
+
+	/**
+	 * Does the work for {@link #toLines(FCObjStore)}, by scanning every row
+	 */
+	private BitSet findLines(FCObjStore store){
+		BitSet lines = new BitSet();
+		if(count==0)return lines;
+		int found = 0;
+		FCObj[] objs = store.objs;
+		for(int row=0;row<store.size;row++){
+			if(containsId(objs[row].id)){
+				lines.set(store.line[row]);
+				found++;
+			}
+		}
+		if(found<count){
+			clear();
+			for(int row=0;row<store.size;row++){
+				if(lines.get(store.line[row]))addId(objs[row].id);
+			}
+		}
+		return lines;
+	}
+
+	@Override
+	public String toString(){
+		int[] ids = new int[count];
+		int n = 0;
+		if(hasFree)ids[n++] = FREE;
+		for(int id:table){
+			if(id!=FREE)ids[n++] = id;
+		}
+		Arrays.sort(ids);
+		StringBuilder sb = new StringBuilder("FCSelection{");
+		for(int i=0;i<n;i++){
+			if(i>0)sb.append(", ");
+			sb.append(ids[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Main method, used only for testing
+	 * <br>
+	 * Adds, removes and flips random ids, including ones past the wrap around,
+	 * and compares with a plain set, then checks the cached line numbers
+	 *
+	 * @param args ignored
+	 */
+	public static void main(String[] args){
+		java.util.Random random = new java.util.Random(5);
+		java.util.HashSet<Integer> expected = new java.util.HashSet<>();
+		FCSelection actual = new FCSelection();
+		FCSelection copy = new FCSelection();
+		int mismatches = 0;
+		for(int t=0;t<100000;t++){
+			int id = random.nextInt(4)==0?random.nextInt(5)-3:random.nextInt(300);
+			CommentLine line = new CommentLine("", 0);
+			line.id = id;
+			switch(random.nextInt(5)){
+			case 0:
+			case 1:
+				actual.add(line);
+				expected.add(id);
+				break;
+			case 2:
+				actual.remove(line);
+				expected.remove(id);
+				break;
+			case 3:
+				actual.flip(line);
+				if(!expected.remove(id))expected.add(id);
+				break;
+			default:
+				if(random.nextInt(1000)==0){
+					actual.clear();
+					expected.clear();
+				}
+			}
+			if(actual.contains(line)!=expected.contains(id))mismatches++;
+			if(actual.size()!=expected.size())mismatches++;
+		}
+		copy.copyFrom(actual);
+		for(int id=-3;id<300;id++){
+			CommentLine line = new CommentLine("", 0);
+			line.id = id;
+			if(copy.contains(line)!=expected.contains(id))mismatches++;
+		}
+		// cached line numbers follow changes to the selection and the store
+		java.util.ArrayList<FCDocumentLine> doc = new java.util.ArrayList<>();
+		for(int i=0;i<100;i++)doc.add(FCObj.tryParse(i%3==0?"#":"SR (0, 0), (1, 1), 0", "fcml", i));
+		FCObjStore store = new FCObjStore();
+		store.rebuild(doc);
+		FCSelection sel = new FCSelection();
+		sel.add(doc.get(4));
+		BitSet lines = sel.toLines(store);
+		lines.set(50);
+		if(!sel.toLines(store).toString().equals("{4}"))mismatches++;
+		sel.flip(doc.get(5));
+		if(!sel.toLines(store).toString().equals("{4, 5}"))mismatches++;
+		doc.add(0, FCObj.tryParse("SR (0, 0), (1, 1), 0", "fcml", 0));
+		store.splice(doc, 0, 0, 1);
+		if(!sel.toLines(store).toString().equals("{5, 6}"))mismatches++;
+		doc.remove(5);
+		store.splice(doc, 5, 1, 0);
+		if(!sel.toLines(store).toString().equals("{5}")||sel.size()!=1)mismatches++;
+		System.out.println("--- Selection ---");
+		System.out.println(actual.size()+" selected, "+mismatches+" mismatches (expected 0)");
+	}
+
+}
@@ -0,0 +1,257 @@
+package com.komiamiko.fcorbit.document;
+
+import java.util.ArrayList;
+
+/**
+ * A canonical FC object type, with everything about it precomputed,
+ * and the registry of all types and their aliases
+ * <br>
+ * Each {@link FCObj} holds its type directly, so hot loops never
+ * need to look up a type by name
+ * <br>
+ * Names are resolved through a perfect hash table, so a lookup
+ * is one hash of the characters and at most one comparison,
+ * and it works directly on a character range
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public final class FCType {
+
+	/**
+	 * Index of this type within {@link #values()}
+	 */
+	public final int id;
+	/**
+	 * Canonical name
+	 */
+	public final String name;
+	/**
+	 * Flag bits, see {@link FCObj#TYPE_CIRCLE} and others
+	 */
+	public final int typeData;
+
+	private FCType(int id,String name,int typeData){
+		this.id = id;
+		this.name = name;
+		this.typeData = typeData;
+	}
+
+	@Override
+	public String toString(){
+		return name;
+	}
+
+	/**
+	 * All canonical types, in order of id
+	 */
+	private static final ArrayList<FCType> types = new ArrayList<>();
+	/**
+	 * All names including aliases, parallel to {@link #aliasTypes}
+	 */
+	private static final ArrayList<String> aliasNames = new ArrayList<>();
+	/**
+	 * Type for each name in {@link #aliasNames}
+	 */
+	private static final ArrayList<FCType> aliasTypes = new ArrayList<>();
+
+	/**
+	 * Add a canonical type
+	 *
+	 * @param name
+	 * @param baseType original type
+	 * @param ts flags to toggle
+	 */
+	private static void addNameTypeBits(String name,int baseType,int...ts){
+		for(int i:ts){
+			baseType^=(1<<i);
+		}
+		FCType type = new FCType(types.size(),name,baseType);
+		types.add(type);
+		aliasNames.add(name);
+		aliasTypes.add(type);
+	}
+
+	/**
+	 * Add both rectangle and circle for type
+	 *
+	 * @param name
+	 * @param baseType
+	 * @param ts
+	 */
+	private static void addNameTypeBitsPair(String name,int baseType,int...ts){
+		for(int i:ts){
+			baseType^=(1<<i);
+		}
+		addNameTypeBits(name+"Rect",baseType);
+		addNameTypeBits(name+"Circle",baseType,FCObj.TYPE_CIRCLE);
+	}
+
+	/**
+	 * Add other names which are identical to some name,
+	 * later names replace earlier ones
+	 *
+	 * @param to the reference name
+	 * @param from
+	 */
+	private static void addAlias(String to,String...from){
+		FCType type = aliasTypes.get(aliasNames.indexOf(to));
+		for(String v:from){
+			int index = aliasNames.indexOf(v);
+			if(index>=0){
+				aliasTypes.set(index, type);
+			}else{
+				aliasNames.add(v);
+				aliasTypes.add(type);
+			}
+		}
+	}
+
+	static{
+		// Add special
+		addNameTypeBits("Empty",0);
+		// Add nonstandard and standalone aliases first
+		addNameTypeBits("UnpowGoalCircle",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_GOAL,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE,FCObj.TYPE_CIRCLE);
+		addNameTypeBits("CWGoalCircle",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_GOAL,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE,FCObj.TYPE_CIRCLE,FCObj.TYPE_POWERED,FCObj.TYPE_CLOCKWISE);
+		addNameTypeBits("CCWGoalCircle",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_GOAL,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE,FCObj.TYPE_CIRCLE,FCObj.TYPE_POWERED);
+		// Add standard types next
+		addNameTypeBits("BuildArea",0,FCObj.TYPE_UNROTATABLE);
+		addNameTypeBits("GoalArea",0,FCObj.TYPE_UNROTATABLE,FCObj.TYPE_GOAL);
+		addNameTypeBitsPair("Static",0,FCObj.TYPE_COLLIDES);
+		addNameTypeBitsPair("Dynamic",0,FCObj.TYPE_COLLIDES,FCObj.TYPE_MOVABLE);
+		addNameTypeBitsPair("Goal",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_GOAL,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE);
+		addNameTypeBits("UnpowWheel",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE,FCObj.TYPE_CIRCLE);
+		addNameTypeBits("CWWheel",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE,FCObj.TYPE_CIRCLE,FCObj.TYPE_POWERED,FCObj.TYPE_CLOCKWISE);
+		addNameTypeBits("CCWWheel",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE,FCObj.TYPE_CIRCLE,FCObj.TYPE_POWERED);
+		addNameTypeBits("WaterRod",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE,FCObj.TYPE_NOSELFCOLLIDE);
+		addNameTypeBits("WoodRod",0,FCObj.TYPE_MOVABLE,FCObj.TYPE_DESIGN,FCObj.TYPE_JOINTABLE);
+		// Add separate aliases after
+		addAlias("BuildArea","BA","Build");
+		addAlias("GoalArea","GA","Goal");
+		addAlias("StaticRect","SR");
+		addAlias("StaticCircle","SC");
+		addAlias("DynamicRect","DR");
+		addAlias("DynamicCircle","DC");
+		addAlias("GoalRect","GR");
+		addAlias("GoalCircle","GC","GP","GB","UG","UGC");
+		addAlias("UnpowWheel","UW","Unpowered");
+		addAlias("CWWheel","WW","CWW","Clockwise");
+		addAlias("CCWWheel","CW","CCWW","Counterclockwise");
+		addAlias("CWGoalCircle","WG","WGC","CWGC");
+		addAlias("CCWGoalCircle","CG","CGC","CCWGC");
+		addAlias("WaterRod","BR","Water");
+		addAlias("WoodRod","WR","Wood");
+	}
+
+	/**
+	 * The empty type, which is invisible and has no flags
+	 */
+	public static final FCType EMPTY = types.get(0);
+
+	/**
+	 * Perfect hash table of names, slot is
+	 * {@code (hash*hashMultiplier)>>>hashShift}
+	 */
+	private static final String[] tableNames;
+	private static final FCType[] tableTypes;
+	private static final int hashMultiplier;
+	private static final int hashShift;
+
+	static{
+		// find a multiplier which gives no collisions, growing the table if needed
+		int n = aliasNames.size();
+		int bits = 32-Integer.numberOfLeadingZeros(n*2-1);
+		int multiplier = 0x9e3779b9;
+		String[] names;
+		search:while(true){
+			for(int attempt=0;attempt<1000;attempt++, multiplier+=0x632be5ab){
+				names = new String[1<<bits];
+				boolean collided = false;
+				for(int i=0;i<n&&!collided;i++){
+					String name = aliasNames.get(i);
+					int slot = (name.hashCode()*multiplier)>>>(32-bits);
+					if(names[slot]!=null){
+						collided = true;
+					}else{
+						names[slot] = name;
+					}
+				}
+				if(!collided)break search;
+			}
+			bits++;
+		}
+		FCType[] slotTypes = new FCType[1<<bits];
+		for(int i=0;i<n;i++){
+			slotTypes[(aliasNames.get(i).hashCode()*multiplier)>>>(32-bits)] = aliasTypes.get(i);
+		}
+		tableNames = names;
+		tableTypes = slotTypes;
+		hashMultiplier = multiplier;
+		hashShift = 32-bits;
+	}
+
+	/**
+	 * Get all canonical types, in order of id
+	 *
+	 * @return a new array of types
+	 */
+	public static FCType[] values(){
+		return types.toArray(new FCType[0]);
+	}
+
+	/**
+	 * Find the slot for a name or alias given as a character range,
+	 * which can then be given to {@link #nameAt(int)} and {@link #typeAt(int)}
+	 *
+	 * @param text
+	 * @param start index of the first character
+	 * @param end index after the last character
+	 * @return the slot, or -1 if the name is not known
+	 */
+	public static int find(CharSequence text,int start,int end){
+		int hash = 0;
+		for(int i=start;i<end;i++){
+			hash = 31*hash+text.charAt(i);
+		}
+		int slot = (hash*hashMultiplier)>>>hashShift;
+		String name = tableNames[slot];
+		if(name==null||name.length()!=end-start)return -1;
+		for(int i=start, j=0;i<end;i++, j++){
+			if(text.charAt(i)!=name.charAt(j))return -1;
+		}
+		return slot;
+	}
+
+	/**
+	 * Get the name in a slot, exactly as it is spelled when looked up,
+	 * which may be an alias
+	 *
+	 * @param slot slot from {@link #find(CharSequence, int, int)}
+	 * @return the name
+	 */
+	public static String nameAt(int slot){
+		return tableNames[slot];
+	}
+
+	/**
+	 * Get the canonical type in a slot
+	 *
+	 * @param slot slot from {@link #find(CharSequence, int, int)}
+	 * @return the type
+	 */
+	public static FCType typeAt(int slot){
+		return tableTypes[slot];
+	}
+
+	/**
+	 * Look up the canonical type for a name or alias
+	 *
+	 * @param name the name
+	 * @return the type, or null if the name is not known
+	 */
+	public static FCType forName(String name){
+		int slot = find(name,0,name.length());
+		return slot<0?null:tableTypes[slot];
+	}
+
+}
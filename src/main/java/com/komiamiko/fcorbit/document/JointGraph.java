@@ -0,0 +1,392 @@
+package com.komiamiko.fcorbit.document;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.komiamiko.fcorbit.Bits;
+
+/**
+ * Which design pieces are jointed together into one contraption
+ * <br>
+ * Nodes are the rows of an {@link FCObjStore}. There is an edge
+ * for every joint which refers to a piece that exists.
+ * Components are tracked with union-find, so asking if two pieces are
+ * connected or how many contraptions there are is near constant time,
+ * and adding a joint is a single union.
+ * <br>
+ * Removing a joint can split a component, which union-find cannot undo,
+ * so the component it was in is walked and relabelled instead.
+ * That costs the size of that one component, not the whole graph.
+ *
+ * @author komiamiko
+ * @version 1.0
+ */
+public class JointGraph {
+
+	/**
+	 * Number of nodes
+	 */
+	private int size;
+	/**
+	 * Union-find parent for each node, roots are their own parent
+	 */
+	private int[] parent = new int[0];
+	/**
+	 * Number of nodes in the component, only meaningful for roots
+	 */
+	private int[] componentSize = new int[0];
+	/**
+	 * Is the node a design piece?
+	 */
+	private final BitSet design = new BitSet();
+	/**
+	 * Number of components made of design pieces
+	 */
+	private int designComponents;
+	/**
+	 * Neighbours of each node, an edge appears once per joint
+	 * in each direction, so there may be repeats
+	 */
+	private int[][] adjacent = new int[0][];
+	private int[] degree = new int[0];
+	/**
+	 * Nodes grouped by component, computed when needed,
+	 * the nodes in the component rooted at r are
+	 * {@code members[memberStart[r]]} up to {@code members[memberEnd[r]]}, exclusive
+	 */
+	private int[] members, memberStart, memberEnd;
+
+	private static final int[] NO_EDGES = new int[0];
+
+	/**
+	 * Replace the graph with the joints in a store
+	 *
+	 * @param store the store
+	 */
+	public void rebuild(FCObjStore store){
+		int n = store.size;
+		size = n;
+		if(parent.length<n){
+			int cap = Math.max(n, parent.length*3/2);
+			parent = new int[cap];
+			componentSize = new int[cap];
+			degree = new int[cap];
+			adjacent = Arrays.copyOf(adjacent, cap);
+		}
+		design.clear();
+		designComponents = 0;
+		for(int i=0;i<n;i++){
+			parent[i] = i;
+			componentSize[i] = 1;
+			degree[i] = 0;
+			if(adjacent[i]==null)adjacent[i] = NO_EDGES;
+			if(Bits.readBit(store.typeData[i], FCObj.TYPE_DESIGN)){
+				design.set(i);
+				designComponents++;
+			}
+		}
+		members = null;
+		for(int row=0;row<n;row++){
+			for(int j=store.jointStart[row];j<store.jointStart[row+1];j++){
+				int other = store.rowOfZ(store.jointData[j]);
+				if(other>=0&&other!=row)addJoint(row, other);
+			}
+		}
+	}
+
+	/**
+	 * Number of nodes
+	 *
+	 * @return the number of nodes
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Find the representative of a node's component
+	 *
+	 * @param node the node
+	 * @return the root of its component
+	 */
+	public int find(int node){
+		int[] parent = this.parent;
+		while(parent[node]!=node){
+			// path halving
+			parent[node] = parent[parent[node]];
+			node = parent[node];
+		}
+		return node;
+	}
+
+	/**
+	 * Are two nodes in the same contraption?
+	 *
+	 * @param a a node
+	 * @param b another node
+	 * @return true if they are connected by joints
+	 */
+	public boolean connected(int a,int b){
+		return find(a)==find(b);
+	}
+
+	/**
+	 * Number of nodes in a node's component
+	 *
+	 * @param node the node
+	 * @return the size of its component
+	 */
+	public int componentSize(int node){
+		return componentSize[find(node)];
+	}
+
+	/**
+	 * Number of contraptions, that is, components made of design pieces
+	 *
+	 * @return the number of contraptions
+	 */
+	public int componentCount(){
+		return designComponents;
+	}
+
+	/**
+	 * Add a joint between two nodes
+	 *
+	 * @param a a node
+	 * @param b another node
+	 */
+	public void addJoint(int a,int b){
+		addEdge(a, b);
+		addEdge(b, a);
+		int ra = find(a), rb = find(b);
+		if(ra==rb)return;
+		// union by size
+		if(componentSize[ra]<componentSize[rb]){
+			int t = ra;
+			ra = rb;
+			rb = t;
+		}
+		parent[rb] = ra;
+		componentSize[ra] += componentSize[rb];
+		if(design.get(ra)&&design.get(rb))designComponents--;
+		members = null;
+	}
+
+	/**
+	 * Remove one joint between two nodes, splitting the component
+	 * if that was the only path between them
+	 *
+	 * @param a a node
+	 * @param b another node
+	 * @return true if there was such a joint
+	 */
+	public boolean removeJoint(int a,int b){
+		if(!removeEdge(a, b))return false;
+		removeEdge(b, a);
+		members = null;
+		// walk from a, if b is reached they are still connected
+		int[] reachedA = walk(a, b);
+		if(reachedA==null)return true;
+		int[] reachedB = walk(b, -1);
+		relabel(reachedA, a);
+		relabel(reachedB, b);
+		if(design.get(a)&&design.get(b))designComponents++;
+		return true;
+	}
+
+	/**
+	 * Collect all nodes reachable from a start node
+	 *
+	 * @param start where to start
+	 * @param stop node which ends the walk early if reached, or -1
+	 * @return the nodes reached, or null if the stop node was reached
+	 */
+	private int[] walk(int start,int stop){
+		BitSet seen = new BitSet();
+		int[] queue = new int[Math.min(size, componentSize[find(start)])];
+		int head = 0, tail = 0;
+		queue[tail++] = start;
+		seen.set(start);
+		while(head<tail){
+			int node = queue[head++];
+			int[] edges = adjacent[node];
+			for(int k=degree[node]-1;k>=0;k--){
+				int next = edges[k];
+				if(next==stop)return null;
+				if(!seen.get(next)){
+					seen.set(next);
+					queue[tail++] = next;
+				}
+			}
+		}
+		return Arrays.copyOf(queue, tail);
+	}
+
+	/**
+	 * Make some nodes their own component
+	 */
+	private void relabel(int[] nodes,int root){
+		for(int node:nodes){
+			parent[node] = root;
+		}
+		componentSize[root] = nodes.length;
+	}
+
+	private void addEdge(int from,int to){
+		int[] edges = adjacent[from];
+		int d = degree[from];
+		if(d==edges.length){
+			edges = adjacent[from] = Arrays.copyOf(edges, Math.max(2, d*2));
+		}
+		edges[d] = to;
+		degree[from] = d+1;
+	}
+
+	private boolean removeEdge(int from,int to){
+		int[] edges = adjacent[from];
+		int d = degree[from];
+		for(int k=0;k<d;k++){
+			if(edges[k]==to){
+				edges[k] = edges[d-1];
+				degree[from] = d-1;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add every node which is in the same component as a node in a set
+	 * <br>
+	 * Costs the size of the components involved, after a one time
+	 * grouping pass whenever the graph has changed
+	 *
+	 * @param nodes set of nodes, modified in place
+	 */
+	public void selectComponents(BitSet nodes){
+		groupMembers();
+		BitSet done = new BitSet();
+		for(int node = nodes.nextSetBit(0); node >= 0 && node < size; node = nodes.nextSetBit(node+1)) {
+			int root = find(node);
+			if(done.get(root))continue;
+			done.set(root);
+			for(int k=memberStart[root];k<memberEnd[root];k++){
+				nodes.set(members[k]);
+			}
+		}
+	}
+
+	/**
+	 * Group nodes by component with a counting sort on their roots
+	 */
+	private void groupMembers(){
+		if(members!=null)return;
+		int n = size;
+		int[] start = new int[n+1];
+		for(int i=0;i<n;i++){
+			start[find(i)+1]++;
+		}
+		for(int i=0;i<n;i++){
+			start[i+1] += start[i];
+		}
+		int[] end = Arrays.copyOf(start, n);
+		int[] grouped = new int[n];
+		for(int i=0;i<n;i++){
+			grouped[end[find(i)]++] = i;
+		}
+		members = grouped;
+		memberStart = start;
+		memberEnd = end;
+	}
+
+	/**
+	 * Main method, used only for testing
+	 * <br>
+	 * Checks components against a plain search after random joint changes
+	 *
+	 * @param args ignored
+	 */
+	public static void main(String[] args){
+		java.util.Random random = new java.util.Random(14);
+		FCType rod = FCType.forName("WoodRod");
+		java.util.ArrayList<FCDocumentLine> doc = new java.util.ArrayList<>();
+		final int n = 3000;
+		for(int i=0;i<n;i++){
+			FCObj obj = new FCObj();
+			obj.fcType = rod;
+			obj.type = rod.name;
+			obj.z = i;
+			int[] joints = new int[random.nextInt(100)==0?1:0];
+			for(int j=0;j<joints.length;j++)joints[j] = random.nextInt(n+10);
+			obj.joints = joints;
+			doc.add(obj);
+		}
+		FCObjStore store = new FCObjStore();
+		store.rebuild(doc);
+		JointGraph graph = new JointGraph();
+		graph.rebuild(store);
+		// edge list kept alongside to check against
+		java.util.ArrayList<int[]> edges = new java.util.ArrayList<>();
+		for(int row=0;row<n;row++){
+			for(int joint:store.objs[row].joints){
+				int other = store.rowOfZ(joint);
+				if(other>=0&&other!=row)edges.add(new int[]{row, other});
+			}
+		}
+		int mismatches = 0;
+		for(int t=0;t<4000;t++){
+			if(random.nextInt(3)>0||edges.isEmpty()){
+				int a = random.nextInt(n), b = random.nextInt(n);
+				if(a==b)continue;
+				graph.addJoint(a, b);
+				edges.add(new int[]{a, b});
+			}else{
+				int[] edge = edges.remove(random.nextInt(edges.size()));
+				if(!graph.removeJoint(edge[0], edge[1]))mismatches++;
+			}
+			if(t%200==0){
+				// plain search
+				int[] label = new int[n];
+				Arrays.fill(label, -1);
+				java.util.ArrayList<java.util.ArrayList<Integer>> adj = new java.util.ArrayList<>();
+				for(int i=0;i<n;i++)adj.add(new java.util.ArrayList<>());
+				for(int[] edge:edges){
+					adj.get(edge[0]).add(edge[1]);
+					adj.get(edge[1]).add(edge[0]);
+				}
+				int count = 0;
+				for(int i=0;i<n;i++){
+					if(label[i]>=0)continue;
+					java.util.ArrayDeque<Integer> queue = new java.util.ArrayDeque<>();
+					queue.add(i);
+					label[i] = count;
+					while(!queue.isEmpty()){
+						for(int next:adj.get(queue.poll())){
+							if(label[next]<0){
+								label[next] = count;
+								queue.add(next);
+							}
+						}
+					}
+					count++;
+				}
+				if(count!=graph.componentCount())mismatches++;
+				for(int q=0;q<200;q++){
+					int a = random.nextInt(n), b = random.nextInt(n);
+					if((label[a]==label[b])!=graph.connected(a, b))mismatches++;
+				}
+				BitSet selection = new BitSet();
+				int seed = random.nextInt(n);
+				selection.set(seed);
+				graph.selectComponents(selection);
+				for(int i=0;i<n;i++){
+					if(selection.get(i)!=(label[i]==label[seed]))mismatches++;
+				}
+				if(selection.cardinality()!=graph.componentSize(seed))mismatches++;
+			}
+		}
+		System.out.println("--- Joint graph ---");
+		System.out.println(graph.componentCount()+" contraptions, "+mismatches+" mismatches (expected 0)");
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.komiamiko.fcorbit.document;
+
+/**
+ * Explains why a line could not be parsed as an FC object
+ * <br>
+ * Meant to be cheap to create, unlike an exception, since
+ * every comment line produces one
+ * 
+ * @author komiamiko
+ * @version 1.0
+ */
+public class ParseDiagnostic {
+	
+	/**
+	 * Human readable reason the line was rejected
+	 */
+	public final String reason;
+	/**
+	 * Column within the line where the problem was found
+	 */
+	public final int column;
+	
+	/**
+	 * Usual constructor, with reason and column.
+	 * 
+	 * @param reason why the line was rejected
+	 * @param column where in the line the problem is
+	 */
+	public ParseDiagnostic(String reason, int column) {
+		this.reason = reason;
+		this.column = column;
+	}
+	
+	@Override
+	public String toString() {
+		return "column " + column + ": " + reason;
+	}
+
+}